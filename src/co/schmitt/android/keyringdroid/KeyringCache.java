@@ -0,0 +1,241 @@
+package co.schmitt.android.keyringdroid;
+
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the keyrings metadata, loaded one account at a time.
+ * <p/>
+ * Each account has a generation, bumped by {@link #invalidate(String)} on every
+ * write to its keyrings. Metadata loaded from the database is only cached if the
+ * generation didn't change while it was loading, so that a concurrent write
+ * never leaves stale metadata behind. The least recently used accounts are
+ * evicted once the cache holds more than {@link #MAX_ROWS} keyrings.
+ * <p/>
+ * Accounts with more than {@link #MAX_ROWS} keyrings can't be cached at all.
+ * Callers count the keyrings of an account before loading them, and mark it
+ * uncacheable until its next write, so that its lookups go to the database
+ * instead of loading every keyring each time.
+ */
+class KeyringCache {
+
+    /**
+     * The cached columns, in the order of the cached rows
+     */
+    static final String[] COLUMNS = new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_TITLE, KeyringVault.Keyrings.COLUMN_NAME_FILENAME, KeyringVault.Keyrings.COLUMN_NAME_CREATE_DATE, KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, KeyringVault.Keyrings.COLUMN_NAME_DELETED};
+
+    /**
+     * The index of the cached columns
+     */
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_FILE_ID = 6;
+
+    /**
+     * The maximum number of keyrings kept in memory, across all accounts
+     */
+    static final int MAX_ROWS = 2000;
+
+    // The cached accounts, from the least to the most recently used
+    private final LinkedHashMap<String, AccountKeyrings> mAccounts = new LinkedHashMap<String, AccountKeyrings>(16, 0.75f, true);
+
+    // The generation of each account
+    private final Map<String, Long> mGenerations = new HashMap<String, Long>();
+
+    // The generation at which each uncacheable account was counted
+    private final Map<String, Long> mUncacheable = new HashMap<String, Long>();
+
+    // The number of keyrings currently cached
+    private int mRowCount;
+
+    /**
+     * Check whether a projection only contains cached columns. A null
+     * projection stands for all the columns of the table, including the upload
+     * and content ones which aren't cached, so it is never covered.
+     *
+     * @param projection The projection to check, null for all the columns
+     * @return True, if the projection can be served from the cache
+     */
+    static boolean covers(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the index of a cached column.
+     *
+     * @param column The column name
+     * @return The index of the column in the cached rows, -1 if not cached
+     */
+    static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Retrieve the cached keyrings of an account.
+     *
+     * @param account The account name
+     * @return The keyrings of the account, null if not cached
+     */
+    synchronized AccountKeyrings get(String account) {
+        return mAccounts.get(account);
+    }
+
+    /**
+     * Retrieve the current generation of an account. Must be read before loading
+     * the keyrings passed to {@link #put(String, long, AccountKeyrings)}.
+     *
+     * @param account The account name
+     * @return The generation of the account
+     */
+    synchronized long getGeneration(String account) {
+        Long generation = mGenerations.get(account);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * Cache the keyrings of an account, unless they changed since they were
+     * loaded or they don't fit in the cache.
+     *
+     * @param account    The account name
+     * @param generation The generation of the account before the keyrings were loaded
+     * @param keyrings   The keyrings of the account
+     */
+    synchronized void put(String account, long generation, AccountKeyrings keyrings) {
+        if (generation != getGeneration(account) || keyrings.size() > MAX_ROWS) {
+            return;
+        }
+        AccountKeyrings previous = mAccounts.put(account, keyrings);
+        if (previous != null) {
+            mRowCount -= previous.size();
+        }
+        mRowCount += keyrings.size();
+
+        // Evict the least recently used accounts
+        Iterator<Map.Entry<String, AccountKeyrings>> eldest = mAccounts.entrySet().iterator();
+        while (mRowCount > MAX_ROWS && eldest.hasNext()) {
+            Map.Entry<String, AccountKeyrings> entry = eldest.next();
+            if (!entry.getKey().equals(account)) {
+                mRowCount -= entry.getValue().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Check whether the keyrings of an account may be loaded into the cache.
+     *
+     * @param account The account name
+     * @return False, if the account has been marked uncacheable since its last
+     *         write
+     */
+    synchronized boolean isCacheable(String account) {
+        Long generation = mUncacheable.get(account);
+        return generation == null || generation != getGeneration(account);
+    }
+
+    /**
+     * Mark an account uncacheable until its next write, because it has more
+     * keyrings than the cache holds.
+     *
+     * @param account    The account name
+     * @param generation The generation of the account before its keyrings were
+     *                   counted
+     */
+    synchronized void setUncacheable(String account, long generation) {
+        if (generation == getGeneration(account)) {
+            mUncacheable.put(account, generation);
+        }
+    }
+
+    /**
+     * Drop the keyrings of an account and bump its generation. Called on every
+     * write to the keyrings of the account.
+     *
+     * @param account The account name
+     */
+    synchronized void invalidate(String account) {
+        mGenerations.put(account, getGeneration(account) + 1);
+        mUncacheable.remove(account);
+        AccountKeyrings previous = mAccounts.remove(account);
+        if (previous != null) {
+            mRowCount -= previous.size();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the keyrings of an account, indexed by keyring ID
+     * and by Drive File ID.
+     */
+    static class AccountKeyrings {
+        private final Map<Long, Object[]> mById = new HashMap<Long, Object[]>();
+        private final Map<String, Object[]> mByFileId = new HashMap<String, Object[]>();
+
+        /**
+         * Load the keyrings of an account.
+         *
+         * @param c A cursor over the keyrings of the account, projected on
+         *          {@link #COLUMNS}. It is left open.
+         */
+        AccountKeyrings(Cursor c) {
+            for (boolean more = c.moveToFirst(); more; more = c.moveToNext()) {
+                Object[] row = new Object[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row[i] = null;
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = c.getLong(i);
+                            break;
+                        default:
+                            row[i] = c.getString(i);
+                            break;
+                    }
+                }
+                mById.put(c.getLong(COLUMN_INDEX_ID), row);
+                if (row[COLUMN_INDEX_FILE_ID] != null) {
+                    mByFileId.put(c.getString(COLUMN_INDEX_FILE_ID), row);
+                }
+            }
+        }
+
+        /**
+         * @param keyringId The keyring ID
+         * @return The keyring row, null if not found
+         */
+        Object[] getById(long keyringId) {
+            return mById.get(keyringId);
+        }
+
+        /**
+         * @param fileId The Drive File ID
+         * @return The keyring row, null if not found
+         */
+        Object[] getByFileId(String fileId) {
+            return mByFileId.get(fileId);
+        }
+
+        /**
+         * @return The number of keyrings
+         */
+        int size() {
+            return mById.size();
+        }
+    }
+}
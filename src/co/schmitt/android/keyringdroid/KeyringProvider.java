@@ -21,6 +21,8 @@ import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -32,7 +34,10 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.*;
 
 
 /**
@@ -45,18 +50,24 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database that the provider uses as its underlying data store
      */
-    private static final String DATABASE_NAME = "keyrings.db";
+    static final String DATABASE_NAME = "keyrings.db";
 
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 9;
 
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sNotesProjectionMap;
 
+    /**
+     * A projection map used to select the keyrings columns when joined with the
+     * full-text index, which has columns of the same names
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
     /**
      * Standard projection for the interesting columns of a normal keyring.
      */
@@ -77,6 +88,69 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Note File ID URI pattern
     private static final int FILE_ID = 3;
 
+    // The incoming URI matches the Search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the sync checkpoint URI pattern
+    private static final int CHECKPOINT = 5;
+
+    /*
+     * Selections restricting a request to the rows of the incoming URI. The
+     * values are always bound as arguments so that the SQL text of a given URI
+     * pattern never changes, and repeated requests reuse the statement SQLite
+     * already compiled and cached for the connection.
+     */
+    private static final String SELECTION_KEYRINGS = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = ?";
+    private static final String SELECTION_KEYRING_ID = SELECTION_KEYRINGS + " AND " + KeyringVault.Keyrings._ID + " = ?";
+    private static final String SELECTION_FILE_ID = SELECTION_KEYRINGS + " AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " = ?";
+
+    /*
+     * Keyset pagination of the keyrings. A page starts right after the last row
+     * of the previous one in the (modified, _id) order, which the (account,
+     * modified) index delivers directly. The leading "modified <= ?" bound is
+     * implied by the rest of the selection, but it is the only term the query
+     * planner can turn into a range of the index: without it the index is
+     * scanned from the first row of the account, and a page costs more the
+     * deeper it is. With it, the scan starts at the previous page.
+     */
+    private static final String SELECTION_PAGE_AFTER = " AND " + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND (" + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " < ? OR (" + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " = ? AND " + KeyringVault.Keyrings._ID + " < ?))";
+    /*
+     * Statements of the triggers keeping the full-text index in sync with the
+     * keyrings table
+     */
+    private static final String FTS_DELETE_OLD = "DELETE FROM " + KeyringVault.Keyrings.FTS_TABLE_NAME + " WHERE docid = old." + KeyringVault.Keyrings._ID + ";";
+    private static final String FTS_INSERT_NEW = "INSERT INTO " + KeyringVault.Keyrings.FTS_TABLE_NAME + "(docid, " + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + ") VALUES (new." + KeyringVault.Keyrings._ID + ", new." + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", new." + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + ");";
+
+    /*
+     * Full-text search of the keyrings of an account. The matches are read most
+     * recently modified first, along with the hits of the search terms in every
+     * indexed column, then sorted by relevance, see querySearch.
+     */
+    private static final String SEARCH_TABLES = KeyringVault.Keyrings.TABLE_NAME + " JOIN " + KeyringVault.Keyrings.FTS_TABLE_NAME + " ON " + KeyringVault.Keyrings.FTS_TABLE_NAME + ".docid = " + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings._ID;
+    private static final String SELECTION_SEARCH = KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = ? AND " + KeyringVault.Keyrings.FTS_TABLE_NAME + " MATCH ?";
+    private static final String SEARCH_SORT_ORDER = KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " DESC";
+    private static final String SEARCH_COLUMN_MATCHINFO = "matchinfo(" + KeyringVault.Keyrings.FTS_TABLE_NAME + ", 'pcx') AS search_matchinfo";
+
+    /**
+     * The weight of a hit of a search term in each indexed column, in the order
+     * of the columns of the full-text index: the title, then the file name
+     */
+    private static final int[] SEARCH_COLUMN_WEIGHTS = {2, 1};
+
+    /**
+     * The current time in milliseconds, in SQL
+     */
+    private static final String NOW = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    private static final String PAGE_SORT_ORDER = KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " DESC, " + KeyringVault.Keyrings._ID + " DESC";
+
+    /**
+     * The number of compiled statements SQLite keeps per connection. Each URI
+     * pattern combined with the selections and projections of the clients needs
+     * its own entry.
+     */
+    private static final int SQL_CACHE_SIZE = 50;
+
     /**
      * A UriMatcher instance
      */
@@ -85,6 +159,18 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Metadata of the recently used accounts, serving the single keyring lookups
+    private final KeyringCache mCache = new KeyringCache();
+
+    // One lock per account, serializing the loads of the metadata of an account
+    // without blocking the loads of the other accounts syncing in parallel.
+    private final Map<String, Object> mAccountLocks = new HashMap<String, Object>();
+
+    // Change notifications deferred until the batch running on the current
+    // thread completes, null when no batch is running. Maps each changed URI
+    // to whether the change must be synced to the network.
+    private final ThreadLocal<Map<Uri, Boolean>> mPendingNotifications = new ThreadLocal<Map<Uri, Boolean>>();
+
 
     /**
      * A block that instantiates and sets static objects
@@ -109,6 +195,14 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         // to a file ID operation
         sUriMatcher.addURI(KeyringVault.AUTHORITY, "*/files/*", FILE_ID);
 
+        // Add a pattern that routes URIs terminated with "search" to a full-text
+        // search of the keyrings
+        sUriMatcher.addURI(KeyringVault.AUTHORITY, "*/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "checkpoint" to the sync
+        // checkpoint of the account
+        sUriMatcher.addURI(KeyringVault.AUTHORITY, "*/checkpoint", CHECKPOINT);
+
     /*
      * Creates and initializes a projection map that returns all columns
      */
@@ -135,6 +229,19 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT);
         sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID);
         sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_DELETED, KeyringVault.Keyrings.COLUMN_NAME_DELETED);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_OFFSET, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_OFFSET);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SIZE, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SIZE);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_MTIME, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_MTIME);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_SIZE, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_SIZE);
+        sNotesProjectionMap.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_MTIME, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_MTIME);
+
+        // Qualifies every column with the keyrings table for the search queries
+        sSearchProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sSearchProjectionMap.put(column, KeyringVault.Keyrings.TABLE_NAME + "." + column + " AS " + column);
+        }
     }
 
     /**
@@ -148,35 +255,154 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
 
+        /**
+         * Configures every connection before it is used. The database is opened
+         * in write-ahead logging mode, so that the readers are served from a pool
+         * of connections, each seeing the last committed snapshot, while the sync
+         * adapter writes.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.enableWriteAheadLogging();
+            db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        }
+
         /**
          * Creates the underlying database with table name and column names taken
-         * from the KeyringVault class.
+         * from the KeyringVault class. The initial schema is created first, then
+         * brought to the current version by the same migrations an upgrade runs,
+         * so that new and upgraded databases always end up identical.
          */
         @Override
         public void onCreate(SQLiteDatabase db) {
             // TODO Remove Title or Filename (dupplicates) + Make Title/Filename unique !
 
             db.execSQL("CREATE TABLE " + KeyringVault.Keyrings.TABLE_NAME + " (" + KeyringVault.Keyrings._ID + " INTEGER PRIMARY KEY," + KeyringVault.Keyrings.COLUMN_NAME_TITLE + " TEXT," + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + " TEXT," + KeyringVault.Keyrings.COLUMN_NAME_CREATE_DATE + " INTEGER," + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " INTEGER," + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " TEXT," + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " TEXT," + KeyringVault.Keyrings.COLUMN_NAME_DELETED + " BOOL DEFAULT FALSE" + ");");
+            onUpgrade(db, 1, DATABASE_VERSION);
         }
 
         /**
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded
-         * the database by destroying the existing data. A real application should
-         * upgrade the database in place.
+         * Upgrades the database in place by running, in order, every migration
+         * between the old and the new version. Each migration only depends on the
+         * schema left by the previous one, so the existing data is kept.
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
             // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-                    + ", which will destroy all old data");
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
 
-            // Kills the table and existing data
-            db.execSQL("DROP TABLE IF EXISTS keyrings");
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                long start = System.currentTimeMillis();
+                upgradeTo(db, version);
+                Log.i(TAG, "Migrated database to version " + version + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
 
-            // Recreates the database with a new version
-            onCreate(db);
+        /**
+         * Migrates the database from the previous version to the given one.
+         *
+         * @param db      The database to migrate
+         * @param version The version to migrate to
+         * @throws IllegalStateException if there is no migration to that version.
+         */
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch (version) {
+                // Version 2 indexes the lookups of the provider: by file ID within an
+                // account (which is also made unique), and by account sorted by
+                // modification date.
+                case 2:
+                    // Keep only the most recently modified row of a Drive file tracked
+                    // more than once, otherwise the unique index cannot be created.
+                    // The latest inserted row wins a tie.
+                    db.execSQL("DELETE FROM " + KeyringVault.Keyrings.TABLE_NAME + " WHERE " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " IS NOT NULL AND EXISTS (SELECT 1 FROM " + KeyringVault.Keyrings.TABLE_NAME + " AS newer WHERE newer." + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = " + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " AND newer." + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " = " + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID
+                            + " AND (IFNULL(newer." + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + ", 0) > IFNULL(" + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + ", 0) OR (IFNULL(newer." + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + ", 0) = IFNULL(" + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + ", 0) AND newer." + KeyringVault.Keyrings._ID + " > " + KeyringVault.Keyrings.TABLE_NAME + "." + KeyringVault.Keyrings._ID + ")))");
+                    db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + KeyringVault.Keyrings.INDEX_ACCOUNT_FILE_ID + " ON " + KeyringVault.Keyrings.TABLE_NAME + " (" + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + ")");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + KeyringVault.Keyrings.INDEX_ACCOUNT_MODIFIED + " ON " + KeyringVault.Keyrings.TABLE_NAME + " (" + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + ", " + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + ")");
+                    break;
+
+                // Version 3 adds a full-text index of the keyring titles and file
+                // names. It reads its content from the keyrings table, and triggers
+                // keep it up to date on every write.
+                case 3:
+                    db.execSQL("CREATE VIRTUAL TABLE " + KeyringVault.Keyrings.FTS_TABLE_NAME + " USING fts4(content=\"" + KeyringVault.Keyrings.TABLE_NAME + "\", " + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + ")");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.Keyrings.FTS_TABLE_NAME + "_before_update BEFORE UPDATE OF " + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + " ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + FTS_DELETE_OLD + " END");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.Keyrings.FTS_TABLE_NAME + "_before_delete BEFORE DELETE ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + FTS_DELETE_OLD + " END");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.Keyrings.FTS_TABLE_NAME + "_after_update AFTER UPDATE OF " + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILENAME + " ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + FTS_INSERT_NEW + " END");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.Keyrings.FTS_TABLE_NAME + "_after_insert AFTER INSERT ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + FTS_INSERT_NEW + " END");
+                    // Index the existing keyrings
+                    db.execSQL("INSERT INTO " + KeyringVault.Keyrings.FTS_TABLE_NAME + "(" + KeyringVault.Keyrings.FTS_TABLE_NAME + ") VALUES('rebuild')");
+                    break;
+
+                // Version 4 adds the per account sync state, adjusted by triggers on
+                // every write so that reading it never scans the keyrings.
+                case 4:
+                    db.execSQL("CREATE TABLE " + KeyringVault.SyncState.TABLE_NAME + " (" + KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + " TEXT PRIMARY KEY," + KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS + " INTEGER NOT NULL DEFAULT 0," + KeyringVault.SyncState.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0," + KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE + " INTEGER NOT NULL DEFAULT 0" + ")");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.SyncState.TABLE_NAME + "_after_insert AFTER INSERT ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + syncStateAdd("new", "+") + " END");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.SyncState.TABLE_NAME + "_after_update AFTER UPDATE ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + syncStateAdd("old", "-") + syncStateAdd("new", "+") + " END");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.SyncState.TABLE_NAME + "_after_delete AFTER DELETE ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + syncStateAdd("old", "-") + " END");
+                    // Compute the state of the existing keyrings
+                    db.execSQL("INSERT INTO " + KeyringVault.SyncState.TABLE_NAME + " SELECT " + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + ", SUM(" + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " IS NULL), SUM(" + KeyringVault.Keyrings.COLUMN_NAME_DELETED + " != 0), " + NOW + " FROM " + KeyringVault.Keyrings.TABLE_NAME + " GROUP BY " + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT);
+                    break;
+
+                // Version 5 tracks the progress of resumable uploads, so that they
+                // survive the death of the process.
+                case 5:
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION + " TEXT");
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_OFFSET + " INTEGER DEFAULT 0");
+                    break;
+
+                // Version 6 stores the checksum of the keyring files along with the
+                // size and modification time it was computed for, so that unchanged
+                // files aren't hashed again on every sync.
+                case 6:
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH + " TEXT");
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_CONTENT_SIZE + " INTEGER");
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_CONTENT_MTIME + " INTEGER");
+                    break;
+
+                // Version 7 journals the sync checkpoints, so that they are
+                // committed along with the changes they cover.
+                case 7:
+                    db.execSQL("CREATE TABLE " + KeyringVault.SyncCheckpoint.TABLE_NAME + " (" + KeyringVault.SyncCheckpoint.COLUMN_NAME_ACCOUNT + " TEXT PRIMARY KEY," + KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID + " INTEGER NOT NULL," + KeyringVault.SyncCheckpoint.COLUMN_NAME_COMMITTED + " INTEGER NOT NULL" + ")");
+                    break;
+
+                // Version 8 ties the pending uploads to the size and modification
+                // time of the file they started with, so that a file edited since
+                // isn't resumed into a mix of both contents.
+                case 8:
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SIZE + " INTEGER");
+                    db.execSQL("ALTER TABLE " + KeyringVault.Keyrings.TABLE_NAME + " ADD COLUMN " + KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_MTIME + " INTEGER");
+                    break;
+
+                // Version 9 only adjusts the sync state on updates of the columns
+                // it depends on or that users see, so that the upload progress and
+                // checksums written during a sync don't rewrite it every time.
+                case 9:
+                    db.execSQL("DROP TRIGGER IF EXISTS " + KeyringVault.SyncState.TABLE_NAME + "_after_update");
+                    db.execSQL("CREATE TRIGGER " + KeyringVault.SyncState.TABLE_NAME + "_after_update AFTER UPDATE OF " + KeyringVault.Keyrings.COLUMN_NAME_TITLE + ", " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + ", " + KeyringVault.Keyrings.COLUMN_NAME_DELETED + ", " + KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE + " ON " + KeyringVault.Keyrings.TABLE_NAME + " BEGIN " + syncStateAdd("old", "-") + syncStateAdd("new", "+") + " END");
+                    break;
+
+                default:
+                    throw new IllegalStateException("No migration to database version " + version);
+            }
+        }
+
+        /**
+         * Builds the trigger statements adding a keyring row to, or removing it
+         * from, the sync state of its account.
+         *
+         * @param row      The trigger row, "old" or "new"
+         * @param operator "+" to add the row, "-" to remove it
+         * @return The trigger statements
+         */
+        private static String syncStateAdd(String row, String operator) {
+            return "INSERT OR IGNORE INTO " + KeyringVault.SyncState.TABLE_NAME + " (" + KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + ") VALUES (" + row + "." + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + ");"
+                    + "UPDATE " + KeyringVault.SyncState.TABLE_NAME + " SET "
+                    + KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS + " = " + KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS + " " + operator + " (" + row + "." + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " IS NULL), "
+                    + KeyringVault.SyncState.COLUMN_NAME_DELETED + " = " + KeyringVault.SyncState.COLUMN_NAME_DELETED + " " + operator + " (" + row + "." + KeyringVault.Keyrings.COLUMN_NAME_DELETED + " != 0), "
+                    + KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE + " = " + NOW
+                    + " WHERE " + KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + " = " + row + "." + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + ";";
         }
     }
 
@@ -211,57 +437,50 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
 
+        // Serves the lookups of a single keyring from the metadata cache when
+        // the cache holds all the requested data.
+        int match = sUriMatcher.match(uri);
+        if (match == SEARCH) {
+            return querySearch(uri, projection, selection, selectionArgs);
+        }
+        if (match == CHECKPOINT) {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            return db.query(KeyringVault.SyncCheckpoint.TABLE_NAME, projection, KeyringVault.SyncCheckpoint.COLUMN_NAME_ACCOUNT + " = ?", new String[]{uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION)}, null, null, null);
+        }
+        if ((match == KEYRING_ID || match == FILE_ID) && selection == null && KeyringCache.covers(projection)) {
+            Cursor c = queryCache(uri, match, projection);
+            if (c != null) {
+                return c;
+            }
+        }
+
         // Constructs a new query builder and sets its table name
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(KeyringVault.Keyrings.TABLE_NAME);
 
-        // Only retrieve keyrings for the specified account.
-        String where = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + "=" + "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION) + "\"";
-
-        /**
-         * Choose the projection and adjust the "where" clause based on URI
-         * pattern-matching.
-         */
-        switch (sUriMatcher.match(uri)) {
-            // If the incoming URI is for keyrings, chooses the Keyrings projection
-            case KEYRINGS:
-                qb.setProjectionMap(sNotesProjectionMap);
-                break;
-
-      /*
-       * If the incoming URI is for a single keyring identified by its ID, chooses
-       * the keyring ID projection, and appends "_ID = <keyringID>" to the where
-       * clause, so that it selects that single keyring
-       */
-            case KEYRING_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                where += "AND " + KeyringVault.Keyrings._ID + // the name of the ID column
-                        "=" +
-                        // the position of the keyring ID itself in the incoming URI
-                        uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION);
-                break;
-
-      /*
-       * If the incoming URI is for a single keyring identified by its file ID,
-       * chooses the keyring ID projection, and appends "fileId = <fileID>" to the
-       * where clause, so that it selects that single keyring
-       */
-            case FILE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                where += "AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + // the name of the ID column
-                        " = " +
-                        // the position of the keyring ID itself in the incoming URI
-                        "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION) + "\"";
-                break;
-
-            default:
-                // If the URI doesn't match any of the known patterns, throw an
-                // exception.
-                throw new IllegalArgumentException("Unknown URI " + uri);
+        // Only retrieve keyrings for the specified account, and the keyring
+        // identified by the URI if any. Throws if the URI pattern is invalid.
+        qb.setProjectionMap(sNotesProjectionMap);
+        qb.appendWhere(getUriSelection(uri, match));
+        String[] uriArgs = getUriSelectionArgs(uri, match);
+
+        // If a page size is specified, only retrieve the page of keyrings
+        // following the continuation token, if any, in the page sort order.
+        String limit = null;
+        String pageSize = uri.getQueryParameter(KeyringVault.Keyrings.PARAM_PAGE_SIZE);
+        if (match == KEYRINGS && pageSize != null) {
+            if (!TextUtils.isEmpty(sortOrder)) {
+                throw new IllegalArgumentException("Keyring pages can't be sorted: " + uri);
+            }
+            limit = String.valueOf(parsePageSize(uri, pageSize));
+            sortOrder = PAGE_SORT_ORDER;
+            String continuationToken = uri.getQueryParameter(KeyringVault.Keyrings.PARAM_CONTINUATION_TOKEN);
+            if (continuationToken != null) {
+                qb.appendWhere(SELECTION_PAGE_AFTER);
+                uriArgs = appendSelectionArgs(uriArgs, parseContinuationToken(uri, continuationToken));
+            }
         }
 
-        qb.appendWhere(where);
-
         String orderBy;
         // If no sort order is specified, uses the default
         if (TextUtils.isEmpty(sortOrder)) {
@@ -284,10 +503,11 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         Cursor c = qb.query(db, // The database to query
                 projection, // The columns to return from the query
                 selection, // The columns for the where clause
-                selectionArgs, // The values for the where clause
+                appendSelectionArgs(uriArgs, selectionArgs), // The values for the where clause
                 null, // don't group the rows
                 null, // don't filter by row groups
-                orderBy // The sort order
+                orderBy, // The sort order
+                limit // The page size, if any
         );
 
         // Tells the Cursor what URI to watch, so it knows when its source data
@@ -296,6 +516,211 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         return c;
     }
 
+    /**
+     * Searches the keyrings of an account whose title or file name contain words
+     * starting with the words of the search query.
+     * <p/>
+     * The keyrings are ranked by relevance, the weighted count of the hits of the
+     * search terms in their title and file name, read from the
+     * {@code matchinfo()} of the full-text index, see
+     * {@link #SEARCH_COLUMN_WEIGHTS}. Keyrings of the same relevance are sorted
+     * most recently modified first.
+     *
+     * @param uri           The search URI, with the query as the q parameter
+     * @param projection    The columns to return
+     * @param selection     Additional selection criteria, may be null
+     * @param selectionArgs The values of the additional selection criteria
+     * @return A cursor containing the matching keyrings, best matches first.
+     *         Empty if the query has no words.
+     */
+    private Cursor querySearch(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        String account = uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION);
+        String query = uri.getQueryParameter(KeyringVault.Keyrings.PARAM_SEARCH_QUERY);
+
+        // Turns every word of the query into a prefix query. Everything else is
+        // dropped so that the query can't use the full-text query syntax.
+        StringBuilder match = new StringBuilder();
+        if (query != null) {
+            for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+                if (word.length() > 0) {
+                    match.append(word).append("* ");
+                }
+            }
+        }
+        if (projection == null) {
+            projection = sSearchProjectionMap.keySet().toArray(new String[sSearchProjectionMap.size()]);
+        }
+        MatrixCursor result = new MatrixCursor(projection);
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        if (match.length() == 0) {
+            return result;
+        }
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(SEARCH_TABLES);
+        qb.setProjectionMap(sSearchProjectionMap);
+        qb.appendWhere(SELECTION_SEARCH);
+
+        // The hits of the search terms follow the columns of the caller
+        String[] columns = Arrays.copyOf(projection, projection.length + 1);
+        columns[projection.length] = SEARCH_COLUMN_MATCHINFO;
+        // The arguments of the URI, then the ones of the caller, as they appear
+        // in the statement
+        String[] args = appendSelectionArgs(new String[]{account, match.toString().trim()}, selectionArgs);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = qb.query(db, columns, selection, args, null, null, SEARCH_SORT_ORDER);
+        // The rows of the caller's columns, followed by their relevance
+        List<Object[]> rows = new ArrayList<Object[]>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                Object[] row = new Object[projection.length + 1];
+                for (int i = 0; i < projection.length; i++) {
+                    row[i] = getValue(c, i);
+                }
+                row[projection.length] = getRelevance(c.getBlob(projection.length));
+                rows.add(row);
+            }
+        } finally {
+            c.close();
+        }
+        // The sort is stable, the most recently modified keyrings stay first
+        // among the ones of the same relevance.
+        final int relevance = projection.length;
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] lhs, Object[] rhs) {
+                return (Integer) rhs[relevance] - (Integer) lhs[relevance];
+            }
+        });
+        for (Object[] row : rows) {
+            result.addRow(Arrays.copyOf(row, relevance));
+        }
+        return result;
+    }
+
+    /**
+     * Compute the relevance of a search result: the hits of every search term
+     * in every indexed column, weighted by {@link #SEARCH_COLUMN_WEIGHTS}.
+     *
+     * @param matchinfo The {@code matchinfo()} of the result, in the 'pcx'
+     *                  format: the number of terms, the number of columns, then
+     *                  three counts per term and column, the first one being the
+     *                  hits in the result
+     * @return The relevance of the result, higher is better
+     */
+    static int getRelevance(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int terms = info.get(0);
+        int columns = info.get(1);
+        int relevance = 0;
+        for (int term = 0; term < terms; term++) {
+            for (int column = 0; column < columns && column < SEARCH_COLUMN_WEIGHTS.length; column++) {
+                relevance += SEARCH_COLUMN_WEIGHTS[column] * info.get(2 + 3 * (term * columns + column));
+            }
+        }
+        return relevance;
+    }
+
+    /**
+     * Read a column of the current row of a cursor, as its own type.
+     *
+     * @param c      The cursor
+     * @param column The index of the column
+     * @return The value of the column
+     */
+    private static Object getValue(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return c.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Looks up a single keyring in the metadata cache, loading the metadata of
+     * its account first if they aren't cached.
+     * <p/>
+     * The keyrings of the account are counted before they are loaded. If there
+     * are more than the cache holds, the account is marked uncacheable until its
+     * next write, and the lookup is left to the database.
+     *
+     * @param uri        The URI of a keyring, matching KEYRING_ID or FILE_ID
+     * @param match      The URI pattern the incoming URI matches
+     * @param projection The columns to return, all cached, see
+     *                   {@link KeyringCache#covers(String[])}
+     * @return A cursor containing the keyring, empty if there is no such keyring.
+     *         Null if the account can't be cached.
+     */
+    private Cursor queryCache(Uri uri, int match, String[] projection) {
+        String account = uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION);
+        String id = uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION);
+
+        KeyringCache.AccountKeyrings keyrings = mCache.get(account);
+        if (keyrings == null) {
+            if (!mCache.isCacheable(account)) {
+                return null;
+            }
+            synchronized (getAccountLock(account)) {
+                // Another thread may have loaded the keyrings while this one waited.
+                keyrings = mCache.get(account);
+                if (keyrings == null) {
+                    // The generation must be read before loading, so that the keyrings
+                    // aren't cached if a write happens meanwhile.
+                    long generation = mCache.getGeneration(account);
+                    SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                    if (DatabaseUtils.queryNumEntries(db, KeyringVault.Keyrings.TABLE_NAME, SELECTION_KEYRINGS, new String[]{account}) > KeyringCache.MAX_ROWS) {
+                        mCache.setUncacheable(account, generation);
+                        return null;
+                    }
+                    Cursor c = db.query(KeyringVault.Keyrings.TABLE_NAME, KeyringCache.COLUMNS, SELECTION_KEYRINGS, new String[]{account}, null, null, null);
+                    try {
+                        keyrings = new KeyringCache.AccountKeyrings(c);
+                    } finally {
+                        c.close();
+                    }
+                    mCache.put(account, generation, keyrings);
+                }
+            }
+        }
+
+        Object[] row = match == KEYRING_ID ? keyrings.getById(Long.parseLong(id)) : keyrings.getByFileId(id);
+        MatrixCursor c = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[KeyringCache.indexOf(projection[i])];
+            }
+            c.addRow(values);
+        }
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * Retrieve the lock of an account.
+     *
+     * @param account The account name
+     * @return The lock of the account, always the same for a given account
+     */
+    private Object getAccountLock(String account) {
+        synchronized (mAccountLocks) {
+            Object lock = mAccountLocks.get(account);
+            if (lock == null) {
+                lock = new Object();
+                mAccountLocks.put(account, lock);
+            }
+            return lock;
+        }
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#getType(Uri)}. Returns the MIME data
@@ -313,15 +738,22 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for keyrings or live folders, returns the general content
-            // type.
+            // If the pattern is for keyrings, live folders or a search, returns the
+            // general content type.
             case KEYRINGS:
+            case SEARCH:
                 return KeyringVault.Keyrings.CONTENT_TYPE;
 
-            // If the pattern is for keyring IDs, returns the keyring ID content type.
+            // If the pattern is for keyring or file IDs, returns the keyring ID
+            // content type.
             case KEYRING_ID:
+            case FILE_ID:
                 return KeyringVault.Keyrings.CONTENT_ITEM_TYPE;
 
+            // If the pattern is for a sync checkpoint, returns the checkpoint type.
+            case CHECKPOINT:
+                return KeyringVault.SyncCheckpoint.CONTENT_ITEM_TYPE;
+
             // If the URI pattern doesn't match any permitted patterns, throws an
             // exception.
             default:
@@ -335,17 +767,18 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
      * a stream.
      */
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[]{ClipDescription.MIMETYPE_TEXT_PLAIN});
+            new String[]{KeyringVault.Keyrings.STREAM_TYPE, ClipDescription.MIMETYPE_TEXT_PLAIN});
 
     /**
      * Returns the types of available data streams. URIs to specific keyrings are
-     * supported. The application can convert such a keyring to a plain text stream.
+     * supported. The application can read the keyring file itself, or convert
+     * such a keyring to a plain text stream.
      *
      * @param uri            the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns
      *                       a data stream type for MIME types that match the filter. Currently,
-     *                       only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     *                       application/octet-stream and text/plain MIME types match.
+     * @return the matching data stream MIME types, the keyring file first.
      * @throws IllegalArgumentException if the URI pattern doesn't match any
      *                                  supported patterns.
      */
@@ -360,12 +793,13 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
             // are not
             // supported for this type of URI.
             case KEYRINGS:
+            case SEARCH:
                 return null;
 
-            // If the pattern is for keyring IDs and the MIME filter is text/plain,
-            // then return
-            // text/plain
+            // If the pattern is for keyring or file IDs, return the types matching
+            // the MIME filter
             case KEYRING_ID:
+            case FILE_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
             // If the URI pattern doesn't match any permitted patterns, throws an
@@ -398,6 +832,12 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // If the keyring file itself is requested, hands out a descriptor on it
+        // rather than copying it through a pipe.
+        if (mimeTypes != null && KeyringVault.Keyrings.STREAM_TYPE.equals(mimeTypes[0])) {
+            return new AssetFileDescriptor(openFile(uri, "r"), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -436,6 +876,56 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
 
+    /**
+     * Returns a read-only descriptor on the file of a keyring, so that the caller
+     * reads its content directly with no copy.
+     *
+     * @param uri  The URI of a keyring, by keyring or file ID
+     * @param mode The access mode, only "r" is supported
+     * @return A read-only descriptor on the keyring file
+     * @throws FileNotFoundException if the keyring or its file doesn't exist, or
+     *                               if the mode isn't read-only.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match != KEYRING_ID && match != FILE_ID) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Keyrings can only be opened for reading: " + uri);
+        }
+
+        String filename = null;
+        Cursor c = query(uri, new String[]{KeyringVault.Keyrings.COLUMN_NAME_FILENAME}, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                filename = c.getString(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (TextUtils.isEmpty(filename)) {
+            throw new FileNotFoundException("Unable to query " + uri);
+        }
+
+        // Only hands out files from the folder of the account
+        String account = uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION);
+        File parent = new File(getContext().getFilesDir(), account);
+        File file = new File(parent, filename);
+        boolean inParent;
+        try {
+            inParent = file.getCanonicalFile().getParentFile().equals(parent.getCanonicalFile());
+        } catch (IOException e) {
+            inParent = false;
+        }
+        if (!inParent) {
+            throw new FileNotFoundException("Invalid keyring file " + filename);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
     /**
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter} to
      * perform the actual work of converting the data in one of cursors to a
@@ -482,8 +972,12 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     public Uri insert(Uri uri, ContentValues initialValues) {
 
         // Validates the incoming URI. Only the full provider URI is allowed for
-        // inserts.
-        if (sUriMatcher.match(uri) != KEYRINGS) {
+        // inserts, besides the sync checkpoints.
+        int match = sUriMatcher.match(uri);
+        if (match == CHECKPOINT) {
+            return insertCheckpoint(uri, initialValues);
+        }
+        if (match != KEYRINGS) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -558,7 +1052,7 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
 
             // Notifies observers registered against this provider that the data
             // changed.
-            getContext().getContentResolver().notifyChange(keyringUri, null);
+            notifyChange(keyringUri);
             return keyringUri;
         }
 
@@ -567,6 +1061,29 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Stores the sync checkpoint of an account, replacing the previous one. Sent
+     * by the sync adapter last in the batch of the changes it covers, so that the
+     * checkpoint is only committed with them.
+     *
+     * @param uri    The URI of the checkpoint
+     * @param values The checkpoint, holding its next change ID
+     * @return The URI of the checkpoint
+     * @throws IllegalArgumentException if the next change ID is missing.
+     */
+    private Uri insertCheckpoint(Uri uri, ContentValues values) {
+        if (values == null || !values.containsKey(KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID)) {
+            throw new IllegalArgumentException("No next change ID given for " + uri);
+        }
+        ContentValues checkpoint = new ContentValues();
+        checkpoint.put(KeyringVault.SyncCheckpoint.COLUMN_NAME_ACCOUNT, uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION));
+        checkpoint.put(KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID, values.getAsLong(KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID));
+        checkpoint.put(KeyringVault.SyncCheckpoint.COLUMN_NAME_COMMITTED, System.currentTimeMillis());
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.insertWithOnConflict(KeyringVault.SyncCheckpoint.TABLE_NAME, null, checkpoint, SQLiteDatabase.CONFLICT_REPLACE);
+        return uri;
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#delete(Uri, String, String[])}.
@@ -586,58 +1103,17 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
     public int delete(Uri uri, String where, String[] whereArgs) {
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String finalWhere = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = " + "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION) + "\"";
-
         int count;
 
-        // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
-
-            // If the incoming pattern matches the general pattern for keyrings, does a
-            // delete based on the incoming "where" columns and arguments.
-            case KEYRINGS:
-                break;
-
-            // If the incoming URI matches a single keyring ID, does the delete based on
-            // the incoming data, but modifies the where clause to restrict it to the
-            // particular keyring ID.
-            case KEYRING_ID:
-        /*
-         * Starts a final WHERE clause by restricting it to the desired keyring ID.
-         */
-                finalWhere = finalWhere + " AND " + KeyringVault.Keyrings._ID + // The ID column name
-                        " = " + // test for equality
-                        uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION); // the incoming keyring ID
-
-                break;
-
-            // If the incoming URI matches a single file ID, does the delete based on
-            // the incoming data, but modifies the where clause to restrict it to the
-            // particular keyring ID.
-            case FILE_ID:
-        /*
-         * Starts a final WHERE clause by restricting it to the desired keyring ID.
-         */
-                finalWhere = finalWhere + " AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + // The ID column name
-                        " = " + // test for equality
-                        "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION) + "\"";
-
-                break;
-
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
-        }
+        // Restricts the delete to the rows of the incoming URI. Throws if the URI
+        // pattern is invalid.
+        int match = sUriMatcher.match(uri);
+        String finalWhere = appendSelection(getUriSelection(uri, match), where);
 
-        // If there were additional selection criteria, append them to the final
-        // WHERE clause
-        if (where != null) {
-            finalWhere = finalWhere + " AND " + where;
-        }
         // Performs the delete.
         count = db.delete(KeyringVault.Keyrings.TABLE_NAME, // The database table name.
                 finalWhere, // The final WHERE clause
-                whereArgs // The incoming where clause values.
+                appendSelectionArgs(getUriSelectionArgs(uri, match), whereArgs) // The where clause values.
         );
 
     /*
@@ -646,7 +1122,7 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
      * to the resolver framework, and observers that have registered themselves
      * for the provider are notified.
      */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows deleted.
         return count;
@@ -679,62 +1155,19 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
-        String finalWhere = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = " + "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION) + "\"";
-
-        // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
-
-            // If the incoming URI matches the general keyrings pattern, does the update
-            // based on the incoming data.
-            case KEYRINGS:
-                break;
-
-            // If the incoming URI matches a single keyring ID, does the update based on
-            // the incoming data, but modifies the where clause to restrict it to the
-            // particular keyring ID.
-            case KEYRING_ID:
-        /*
-         * Starts creating the final WHERE clause by restricting it to the
-         * incoming keyring ID.
-         */
-                finalWhere = finalWhere + " AND " + KeyringVault.Keyrings._ID + // The ID column name
-                        " = " + // test for equality
-                        uri.getPathSegments(). // the incoming keyring ID
-                                get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION);
-
-                break;
-
-            // If the incoming URI matches a single keyring ID, does the update based on
-            // the incoming data, but modifies the where clause to restrict it to the
-            // particular keyring ID.
-            case FILE_ID:
-        /*
-         * Starts creating the final WHERE clause by restricting it to the
-         * incoming keyring ID.
-         */
-                finalWhere = finalWhere + " AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + // The ID column name
-                        " = " + // test for equality
-                        "\"" + uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION) + "\"";
-
-                break;
 
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
-        }
+        // Restricts the update to the rows of the incoming URI. Throws if the URI
+        // pattern is invalid.
+        int match = sUriMatcher.match(uri);
+        String finalWhere = appendSelection(getUriSelection(uri, match), where);
 
-        // If there were additional selection criteria, append them to the final
-        // WHERE clause
-        if (where != null) {
-            finalWhere = finalWhere + " AND " + where;
-        }
         // Does the update and returns the number of rows updated.
         count = db.update(KeyringVault.Keyrings.TABLE_NAME, // The database table name.
                 values, // A map of column names and new values to use.
                 finalWhere, // The final WHERE clause to use
                 // placeholders for whereArgs
-                whereArgs // The where clause column values to select on, or
-                // null if the values are in the where argument.
+                appendSelectionArgs(getUriSelectionArgs(uri, match), whereArgs) // The where clause
+                // column values to select on.
         );
 
     /*
@@ -743,12 +1176,313 @@ public class KeyringProvider extends ContentProvider implements PipeDataWriter<C
      * to the resolver framework, and observers that have registered themselves
      * for the provider are notified.
      */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * Runs a provider method that does not map to a table operation.
+     *
+     * @param method The method to run, one of the KeyringVault METHOD_ constants
+     * @param arg    The argument of the method, the account name for
+     *               {@link KeyringVault.SyncState#METHOD_GET}
+     * @param extras The extras of the method, unused
+     * @return The result of the method
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (KeyringVault.METHOD_CHECKPOINT.equals(method)) {
+            checkpoint();
+            return null;
+        }
+        if (KeyringVault.SyncState.METHOD_GET.equals(method)) {
+            return getSyncState(arg);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Reads the sync state of an account.
+     *
+     * @param account The account name
+     * @return The sync state of the account, by column name. All zeros if the
+     *         account has never had any keyring.
+     * @throws IllegalArgumentException if no account is given.
+     */
+    private Bundle getSyncState(String account) {
+        if (account == null) {
+            throw new IllegalArgumentException("No account given for the sync state");
+        }
+        Bundle state = new Bundle();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.query(KeyringVault.SyncState.TABLE_NAME, new String[]{KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS, KeyringVault.SyncState.COLUMN_NAME_DELETED, KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE}, KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + " = ?", new String[]{account}, null, null, null);
+        try {
+            boolean found = c.moveToFirst();
+            state.putInt(KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS, found ? c.getInt(0) : 0);
+            state.putInt(KeyringVault.SyncState.COLUMN_NAME_DELETED, found ? c.getInt(1) : 0);
+            state.putLong(KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE, found ? c.getLong(2) : 0);
+        } finally {
+            c.close();
+        }
+        return state;
+    }
+
+    /**
+     * Copies the write-ahead log back into the database and restarts it, so that
+     * the next writes reuse the log from its beginning instead of growing it.
+     */
+    private void checkpoint() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(RESTART)", null);
+        try {
+            if (c.moveToFirst()) {
+                Log.d(TAG, "Checkpointed " + c.getInt(2) + " of " + c.getInt(1) + " log frames");
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the selection restricting a request to the rows of the incoming
+     * URI. The values it refers to are returned by
+     * {@link #getUriSelectionArgs(Uri, int)}.
+     *
+     * @param uri   The incoming URI
+     * @param match The URI pattern the incoming URI matches
+     * @return The selection of the URI pattern
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    private static String getUriSelection(Uri uri, int match) {
+        switch (match) {
+            case KEYRINGS:
+                return SELECTION_KEYRINGS;
+            case KEYRING_ID:
+                return SELECTION_KEYRING_ID;
+            case FILE_ID:
+                return SELECTION_FILE_ID;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Returns the values to bind to the selection returned by
+     * {@link #getUriSelection(Uri, int)}: the account, then the keyring or file
+     * ID if the URI identifies a single keyring.
+     *
+     * @param uri   The incoming URI
+     * @param match The URI pattern the incoming URI matches
+     * @return The selection arguments of the URI
+     */
+    private static String[] getUriSelectionArgs(Uri uri, int match) {
+        String account = uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION);
+        if (match == KEYRINGS) {
+            return new String[]{account};
+        }
+        return new String[]{account, uri.getPathSegments().get(KeyringVault.Keyrings.NOTE_FILE_ID_PATH_POSITION)};
+    }
+
+    /**
+     * Parses the page size of a paged keyrings URI.
+     *
+     * @param uri      The incoming URI
+     * @param pageSize The page size parameter of the URI
+     * @return The page size
+     * @throws IllegalArgumentException if the page size isn't a positive number.
+     */
+    private static int parsePageSize(Uri uri, String pageSize) {
+        try {
+            int size = Integer.parseInt(pageSize);
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid page size " + uri);
+    }
+
+    /**
+     * Parses the continuation token of a paged keyrings URI into the arguments
+     * of {@link #SELECTION_PAGE_AFTER}.
+     *
+     * @param uri               The incoming URI
+     * @param continuationToken The continuation token parameter of the URI, as
+     *                          built by {@link KeyringUri#getContinuationToken(long, long)}
+     * @return The selection arguments of the page
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    private static String[] parseContinuationToken(Uri uri, String continuationToken) {
+        String[] keys = continuationToken.split(":");
+        try {
+            if (keys.length == 2) {
+                long modified = Long.parseLong(keys[0]);
+                long id = Long.parseLong(keys[1]);
+                return new String[]{String.valueOf(modified), String.valueOf(modified), String.valueOf(modified), String.valueOf(id)};
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid continuation token " + uri);
+    }
+
+    /**
+     * Combines the selection of the URI with the one of the caller.
+     *
+     * @param uriSelection The selection of the URI
+     * @param selection    The selection of the caller, may be null
+     * @return The combined selection
+     */
+    private static String appendSelection(String uriSelection, String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return uriSelection;
+        }
+        return uriSelection + " AND (" + selection + ")";
+    }
+
+    /**
+     * Combines the selection arguments of the URI with the ones of the caller, in
+     * the order of their selections.
+     *
+     * @param uriArgs       The selection arguments of the URI
+     * @param selectionArgs The selection arguments of the caller, may be null
+     * @return The combined selection arguments
+     */
+    private static String[] appendSelectionArgs(String[] uriArgs, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return uriArgs;
+        }
+        String[] args = new String[uriArgs.length + selectionArgs.length];
+        System.arraycopy(uriArgs, 0, args, 0, uriArgs.length);
+        System.arraycopy(selectionArgs, 0, args, uriArgs.length, selectionArgs.length);
+        return args;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all the rows within a single transaction, so that the whole batch
+     * costs one journal sync and one change notification instead of one per row.
+     *
+     * @param uri    The URI of the keyrings to insert into.
+     * @param values The rows to insert.
+     * @return The number of rows inserted.
+     * @throws SQLException if one of the insertions fails. No row is inserted
+     *                      in that case.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            endBatch(successful);
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all the operations within a single transaction and notifies the
+     * observers once the whole batch has been committed.
+     *
+     * @param operations The operations to apply.
+     * @return The results of the applied operations.
+     * @throws OperationApplicationException if one of the operations fails. No
+     *                                       operation is applied in that case.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * Start deferring the change notifications of the current thread.
+     */
+    private void beginBatch() {
+        mPendingNotifications.set(new HashMap<Uri, Boolean>());
+    }
+
+    /**
+     * Stop deferring the change notifications of the current thread and send
+     * the deferred ones.
+     *
+     * @param successful Whether the batch has been committed. Nothing changed
+     *                   otherwise, so the deferred notifications are dropped.
+     */
+    private void endBatch(boolean successful) {
+        Map<Uri, Boolean> pending = mPendingNotifications.get();
+        mPendingNotifications.remove();
+        if (pending == null) {
+            return;
+        }
+        // Invalidate the metadata again now that the changes are committed, or
+        // rolled back, since it may have been reloaded during the batch.
+        for (Uri uri : pending.keySet()) {
+            mCache.invalidate(uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION));
+        }
+        if (successful) {
+            for (Map.Entry<Uri, Boolean> notification : pending.entrySet()) {
+                getContext().getContentResolver().notifyChange(notification.getKey(), null, notification.getValue());
+            }
+        }
+    }
+
+    /**
+     * Notify the observers that the data behind the given URI changed, and drop
+     * the cached metadata of its account. While a
+     * batch is running, the notification is deferred and merged with the others
+     * of the same account into a single one on the root URI of the account,
+     * which reaches the observers of its keyrings, keyring and file URIs alike,
+     * see {@link KeyringUri#getAccountUri(String)}.
+     * <p/>
+     * Changes made by the sync adapter are already in sync with Drive, so they
+     * don't request another upload sync.
+     *
+     * @param uri The URI that changed.
+     */
+    private void notifyChange(Uri uri) {
+        String account = uri.getPathSegments().get(KeyringVault.Keyrings.KEYRING_ACCOUNT_PATH_POSITION);
+        mCache.invalidate(account);
+
+        boolean syncToNetwork = !KeyringUri.isCallerSyncAdapter(uri);
+        Map<Uri, Boolean> pending = mPendingNotifications.get();
+        if (pending != null) {
+            Uri accountUri = KeyringUri.getAccountUri(account);
+            Boolean pendingSyncToNetwork = pending.get(accountUri);
+            pending.put(accountUri, syncToNetwork || (pendingSyncToNetwork != null && pendingSyncToNetwork));
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+        }
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying
      * NotePadProvider, so it can insert test data into the database. The test
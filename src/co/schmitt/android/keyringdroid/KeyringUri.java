@@ -9,6 +9,17 @@ public class KeyringUri {
 
     private KeyringUri() {}
 
+    /**
+     * Retrieve the root URI of a given account. A change notified on it reaches
+     * the observers of all the URIs of the account.
+     *
+     * @param accountName The owner's account name
+     * @return The root URI of the account
+     */
+    public static Uri getAccountUri(String accountName) {
+        return Uri.parse("content://co.schmitt.android.provider.KeyringDroid/" + accountName);
+    }
+
     /**
      * Retrieve the URI of Keyrings for a given account
      *
@@ -19,6 +30,35 @@ public class KeyringUri {
         return Uri.parse("content://co.schmitt.android.provider.KeyringDroid/" + accountName + "/keyrings/");
     }
 
+    /**
+     * Retrieve the URI of a page of Keyrings for a given account
+     *
+     * @param accountName       The owner's account name
+     * @param pageSize          The maximum number of keyrings of the page
+     * @param continuationToken The token of the last keyring of the previous
+     *                          page, null for the first page
+     * @return The URI of the page of Keyrings
+     */
+    public static Uri getKeyringsPageUri(String accountName, int pageSize, String continuationToken) {
+        Uri.Builder builder = getKeyringsUri(accountName).buildUpon().appendQueryParameter(KeyringVault.Keyrings.PARAM_PAGE_SIZE, String.valueOf(pageSize));
+        if (continuationToken != null) {
+            builder.appendQueryParameter(KeyringVault.Keyrings.PARAM_CONTINUATION_TOKEN, continuationToken);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Retrieve the continuation token of a keyring, to request the page of
+     * Keyrings following it
+     *
+     * @param modified  The modification date of the keyring
+     * @param keyringId The ID of the keyring
+     * @return The continuation token
+     */
+    public static String getContinuationToken(long modified, long keyringId) {
+        return modified + ":" + keyringId;
+    }
+
     /**
      * Retrieve the URI of KeyringVault for a given account
      *
@@ -30,6 +70,48 @@ public class KeyringUri {
         return Uri.parse("content://co.schmitt.android.provider.KeyringDroid/" + accountName + "/keyring/" + keyringId);
     }
 
+    /**
+     * Retrieve the URI searching the Keyrings of a given account
+     *
+     * @param accountName The owner's account name
+     * @param query       The words to search for
+     * @return The URI of the search results
+     */
+    public static Uri getSearchUri(String accountName, String query) {
+        return Uri.parse("content://co.schmitt.android.provider.KeyringDroid/" + accountName + "/search").buildUpon().appendQueryParameter(KeyringVault.Keyrings.PARAM_SEARCH_QUERY, query).build();
+    }
+
+    /**
+     * Retrieve the URI of the sync checkpoint of a given account
+     *
+     * @param accountName The owner's account name
+     * @return The URI of the sync checkpoint
+     */
+    public static Uri getCheckpointUri(String accountName) {
+        return Uri.parse("content://co.schmitt.android.provider.KeyringDroid/" + accountName + "/checkpoint");
+    }
+
+    /**
+     * Flag a URI as used by the sync adapter. The provider doesn't request an
+     * upload sync for the changes made through it.
+     *
+     * @param uri The URI to flag
+     * @return The flagged URI
+     */
+    public static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(KeyringVault.CALLER_IS_SYNCADAPTER, "true").build();
+    }
+
+    /**
+     * Check whether a URI is used by the sync adapter.
+     *
+     * @param uri The URI to check
+     * @return True, if the URI has been flagged by {@link #asSyncAdapter(Uri)}
+     */
+    public static boolean isCallerSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(KeyringVault.CALLER_IS_SYNCADAPTER));
+    }
+
     /**
      * Retrieve the URI of a (local ?) file
      *
@@ -29,6 +29,18 @@ import android.provider.BaseColumns;
 public final class KeyringVault {
     public static final String AUTHORITY = "co.schmitt.android.provider.KeyringDroid";
 
+    /**
+     * Provider method checkpointing the write-ahead log into the database. The
+     * sync adapter calls it once a sync completed to keep the log small.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Query parameter flagging the requests of the sync adapter. Their changes
+     * don't request an upload sync.
+     */
+    public static final String CALLER_IS_SYNCADAPTER = "caller_is_syncadapter";
+
     // This class cannot be instantiated
     private KeyringVault() {
     }
@@ -47,6 +59,22 @@ public final class KeyringVault {
          */
         public static final String TABLE_NAME = "keyrings";
 
+        /**
+         * The full-text index of the keyring titles and file names
+         */
+        public static final String FTS_TABLE_NAME = "keyrings_fts";
+
+        /**
+         * Unique index of the keyrings by account and Drive File ID
+         */
+        public static final String INDEX_ACCOUNT_FILE_ID = "keyrings_account_fileId";
+
+        /**
+         * Index of the keyrings by account and modification timestamp, backs the
+         * default sort order
+         */
+        public static final String INDEX_ACCOUNT_MODIFIED = "keyrings_account_modified";
+
     /*
      * URI definitions
      */
@@ -129,11 +157,35 @@ public final class KeyringVault {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.keyring";
 
+        /**
+         * The MIME type of the content of a keyring file, as streamed by the
+         * provider
+         */
+        public static final String STREAM_TYPE = "application/octet-stream";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * Query parameter of the keyrings URI requesting a page of keyrings of at
+         * most the given size, sorted by modification date then ID, descending
+         */
+        public static final String PARAM_PAGE_SIZE = "limit";
+
+        /**
+         * Query parameter of the keyrings URI requesting the page following the
+         * given keyring, see {@link co.schmitt.android.keyringdroid.KeyringUri#getContinuationToken(long, long)}
+         */
+        public static final String PARAM_CONTINUATION_TOKEN = "after";
+
+        /**
+         * Query parameter of the search URI holding the words to search the keyring
+         * titles and file names for. Each word matches as a prefix.
+         */
+        public static final String PARAM_SEARCH_QUERY = "q";
+
     /*
      * Column definitions
      */
@@ -193,5 +245,167 @@ public final class KeyringVault {
          * </P>
          */
         public static final String COLUMN_NAME_DELETED = "deleted";
+
+        /**
+         * Column name for the session URI of the pending resumable upload
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_UPLOAD_SESSION = "upload_session";
+
+        /**
+         * Column name for the number of bytes of the pending upload acknowledged
+         * by Drive
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_UPLOAD_OFFSET = "upload_offset";
+
+        /**
+         * Column name for the size of the keyring file when the pending upload
+         * started. The upload is only resumed as long as the file still has the
+         * same size and modification time.
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_UPLOAD_SIZE = "upload_size";
+
+        /**
+         * Column name for the modification time of the keyring file when the
+         * pending upload started
+         * <p/>
+         * Type: INTEGER (long from File.lastModified())
+         * </P>
+         */
+        public static final String COLUMN_NAME_UPLOAD_MTIME = "upload_mtime";
+
+        /**
+         * Column name for the MD5 checksum of the keyring file, valid as long as
+         * the size and modification time of the file match the stored ones
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+
+        /**
+         * Column name for the size of the keyring file when its checksum was computed
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_CONTENT_SIZE = "content_size";
+
+        /**
+         * Column name for the modification time of the keyring file when its
+         * checksum was computed
+         * <p/>
+         * Type: INTEGER (long from File.lastModified())
+         * </P>
+         */
+        public static final String COLUMN_NAME_CONTENT_MTIME = "content_mtime";
+    }
+
+    /**
+     * Sync state table contract. Holds per account aggregates of the keyrings
+     * table, kept up to date by triggers on every write.
+     */
+    public static final class SyncState {
+
+        // This class cannot be instantiated
+        private SyncState() {
+        }
+
+        /**
+         * The table name
+         */
+        public static final String TABLE_NAME = "sync_state";
+
+        /**
+         * Column name for the account, the primary key
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_ACCOUNT = "account";
+
+        /**
+         * Column name for the number of keyrings not uploaded to Drive yet
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_PENDING_UPLOADS = "pending_uploads";
+
+        /**
+         * Column name for the number of keyrings marked as deleted
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_DELETED = "deleted";
+
+        /**
+         * Column name for the timestamp of the last change to the keyrings
+         * <p/>
+         * Type: INTEGER (long, milliseconds since the epoch)
+         * </P>
+         */
+        public static final String COLUMN_NAME_LAST_CHANGE = "last_change";
+
+        /**
+         * Provider method returning the sync state of the account given as argument.
+         * The result holds the columns of this table, by column name.
+         */
+        public static final String METHOD_GET = "get_sync_state";
+    }
+
+    /**
+     * Sync checkpoint table contract. Holds, per account, the Drive change the
+     * next sync starts from. The sync adapter writes it in the same batch as the
+     * changes it applies, so that both are committed together.
+     */
+    public static final class SyncCheckpoint {
+
+        // This class cannot be instantiated
+        private SyncCheckpoint() {
+        }
+
+        /**
+         * The table name
+         */
+        public static final String TABLE_NAME = "sync_checkpoint";
+
+        /**
+         * The MIME type of the checkpoint of an account
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.keyring.checkpoint";
+
+        /**
+         * Column name for the account, the primary key
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_ACCOUNT = "account";
+
+        /**
+         * Column name for the ID of the first Drive change not applied yet
+         * <p/>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String COLUMN_NAME_NEXT_CHANGE_ID = "next_change_id";
+
+        /**
+         * Column name for the timestamp of the commit of the checkpoint
+         * <p/>
+         * Type: INTEGER (long from System.curentTimeMillis())
+         * </P>
+         */
+        public static final String COLUMN_NAME_COMMITTED = "committed";
     }
 }
\ No newline at end of file
@@ -62,12 +62,7 @@ public class MD5 {
             while ((read = is.read(buffer)) > 0) {
                 digest.update(buffer, 0, read);
             }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
+            return toHexString(digest.digest());
         } catch (IOException e) {
             throw new RuntimeException("Unable to process file for MD5", e);
         } finally {
@@ -79,6 +74,13 @@ public class MD5 {
         }
     }
 
+    public static String toHexString(byte[] md5sum) {
+        BigInteger bigInt = new BigInteger(1, md5sum);
+        String output = bigInt.toString(16);
+        // Fill to 32 chars
+        return String.format("%32s", output).replace(' ', '0');
+    }
+
     public static String getRecoveryMD5() {
         String MD5string = "";
         String recoveryFilename = "/dev/mtd/mtd1";
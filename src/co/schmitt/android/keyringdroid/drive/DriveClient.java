@@ -0,0 +1,262 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.android.gms.auth.UserRecoverableAuthException;
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.*;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived Google Drive client of an account.
+ * <p/>
+ * Clients are kept in a process-wide registry, one per account, and share a
+ * single HTTP transport and JSON factory, so that every sync reuses the
+ * connections kept alive by the previous ones instead of building its own
+ * service. The access token of each client is cached, and refreshed in the
+ * background before it expires, so that a sync only waits for a token when the
+ * client is first used or hasn't been used for a while.
+ */
+final class DriveClient {
+    private static final String TAG = "DriveClient";
+
+    /**
+     * Lifetime of the access tokens issued by Google
+     */
+    private static final long TOKEN_LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * A cached token isn't handed out anymore this long before it expires, and
+     * is refreshed in the background twice as long before it expires.
+     */
+    private static final long TOKEN_REFRESH_MARGIN_MILLIS = 10 * 60 * 1000;
+
+    private static HttpTransport sTransport = AndroidHttp.newCompatibleTransport();
+    // The access token of all the clients, instead of the ones of Google Play
+    // services, see setTransport(HttpTransport, String)
+    private static volatile String sFixedToken;
+    private static final JsonFactory sJsonFactory = new GsonFactory();
+
+    // The clients, by account name
+    private static final Map<String, DriveClient> sClients = new HashMap<String, DriveClient>();
+
+    // Refreshes the tokens of all the clients
+    private static final ScheduledExecutorService sRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CachingCredential mCredential;
+    private final Drive mService;
+
+    private DriveClient(Context context, String accountName) {
+        mCredential = new CachingCredential(context, accountName);
+        mService = new Drive.Builder(sTransport, sJsonFactory, mCredential).build();
+    }
+
+    /**
+     * Retrieve the client of an account, creating it on first use.
+     *
+     * @param context     Context to use on credential requests.
+     * @param accountName The account name
+     * @return The client of the account
+     */
+    static synchronized DriveClient get(Context context, String accountName) {
+        DriveClient client = sClients.get(accountName);
+        if (client == null) {
+            client = new DriveClient(context.getApplicationContext(), accountName);
+            sClients.put(accountName, client);
+        }
+        return client;
+    }
+
+    /**
+     * Replace the HTTP transport of the clients, e.g. by a
+     * {@code MockHttpTransport} standing in for Drive. The existing clients are
+     * dropped, so that every account gets a new client on the new transport.
+     * Only meant for tests and benchmarks, see {@code FakeDrive}.
+     *
+     * @param transport The HTTP transport
+     * @param token     The access token sent by all the clients, so that
+     *                  accounts unknown to the device can be synced. Null to
+     *                  request the tokens from Google Play services.
+     */
+    static synchronized void setTransport(HttpTransport transport, String token) {
+        sTransport = transport;
+        sFixedToken = token;
+        sClients.clear();
+    }
+
+    /**
+     * @return The Drive service of the account
+     */
+    Drive getService() {
+        return mService;
+    }
+
+    /**
+     * Retrieve an access token for the account, from the cache unless it is
+     * about to expire.
+     *
+     * @return The access token
+     * @throws UserRecoverableAuthException if the user must authorize the app.
+     * @throws GoogleAuthException
+     * @throws IOException
+     */
+    String getToken() throws IOException, GoogleAuthException {
+        return mCredential.getToken();
+    }
+
+    /**
+     * @return The number of HTTP requests sent by the service so far, every
+     *         attempt of a retried request included
+     */
+    long getRequestCount() {
+        return mCredential.mRequestCount.get();
+    }
+
+    /**
+     * Credential handing out a cached access token, refreshed in the background.
+     */
+    private static class CachingCredential extends GoogleAccountCredential {
+        private String mToken;
+        // Elapsed realtime after which mToken isn't handed out anymore
+        private long mExpiry;
+        // Whether mToken has been handed out since the last refresh
+        private boolean mUsed;
+        private ScheduledFuture<?> mRefresh;
+        private final AtomicLong mRequestCount = new AtomicLong();
+
+        private final Runnable mRefreshTask = new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        };
+
+        CachingCredential(Context context, String accountName) {
+            super(context, "oauth2: " + DriveScopes.DRIVE);
+            setSelectedAccountName(accountName);
+        }
+
+        @Override
+        public synchronized String getToken() throws IOException, GoogleAuthException {
+            if (sFixedToken != null) {
+                return sFixedToken;
+            }
+            if (mToken == null || SystemClock.elapsedRealtime() >= mExpiry) {
+                // The token may have been cached by Google Play services for an
+                // unknown time. If it expires before the computed expiry, Drive
+                // rejects it and it is dropped, see initialize(HttpRequest).
+                setToken(super.getToken());
+            }
+            mUsed = true;
+            return mToken;
+        }
+
+        @Override
+        public void initialize(HttpRequest request) {
+            super.initialize(request);
+            // Count every attempt, a request being retried by the RequestGate
+            // or after a rejected token.
+            final HttpExecuteInterceptor interceptor = request.getInterceptor();
+            request.setInterceptor(new HttpExecuteInterceptor() {
+                @Override
+                public void intercept(HttpRequest request) throws IOException {
+                    mRequestCount.incrementAndGet();
+                    if (interceptor != null) {
+                        interceptor.intercept(request);
+                    }
+                }
+            });
+            // Drop the cached token along with the one of Google Play services
+            // when it is rejected, so that the retry fetches a new one.
+            final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+            request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+                @Override
+                public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+                    if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
+                        invalidate();
+                    }
+                    return handler.handleResponse(request, response, supportsRetry);
+                }
+            });
+        }
+
+        /**
+         * Replace the cached token by a fresh one. Clients which haven't been
+         * used since the last refresh drop their token instead, so that idle
+         * accounts don't keep requesting tokens.
+         */
+        private void refresh() {
+            String staleToken;
+            synchronized (this) {
+                if (!mUsed) {
+                    mToken = null;
+                    return;
+                }
+                staleToken = mToken;
+            }
+            try {
+                // The stale token is still handed out meanwhile, it remains valid
+                // until its expiry.
+                if (staleToken != null) {
+                    GoogleAuthUtil.invalidateToken(getContext(), staleToken);
+                }
+                String token = super.getToken();
+                synchronized (this) {
+                    setToken(token);
+                    mUsed = false;
+                }
+                Log.d(TAG, "Refreshed the token of " + getSelectedAccountName());
+            } catch (GoogleAuthException e) {
+                // The next sync asks for authorization
+                e.printStackTrace();
+                invalidate();
+            } catch (IOException e) {
+                // Keep the current token, it is fetched again once expired
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Cache a new token, and schedule its refresh in the background from its
+         * expiry.
+         *
+         * @param token The new token
+         */
+        private synchronized void setToken(String token) {
+            mToken = token;
+            mExpiry = SystemClock.elapsedRealtime() + TOKEN_LIFETIME_MILLIS - TOKEN_REFRESH_MARGIN_MILLIS;
+            scheduleRefresh(TOKEN_LIFETIME_MILLIS - 2 * TOKEN_REFRESH_MARGIN_MILLIS);
+        }
+
+        private synchronized void invalidate() {
+            mToken = null;
+        }
+
+        private synchronized void scheduleRefresh(long delayMillis) {
+            if (mRefresh != null) {
+                mRefresh.cancel(false);
+            }
+            mRefresh = sRefresher.schedule(mRefreshTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
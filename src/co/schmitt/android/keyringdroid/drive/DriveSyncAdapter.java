@@ -8,8 +8,8 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
-import co.schmitt.android.keyringdroid.R;
+import android.os.RemoteException;
+import co.schmitt.android.keyringdroid.KeyringVault;
 
 /**
  * Created with IntelliJ IDEA.
@@ -20,22 +20,26 @@ import co.schmitt.android.keyringdroid.R;
 public class DriveSyncAdapter extends AbstractThreadedSyncAdapter {
 
     /**
-     * Constructs a new DriveSyncAdapter.
+     * Constructs a new DriveSyncAdapter. The accounts are synced in parallel,
+     * each sync running on its own thread with its own {@link DriveSyncer}. The
+     * requests of all the syncs share the {@link RequestGate}.
      *
      * @see AbstractThreadedSyncAdapter
      */
     public DriveSyncAdapter(Context context, boolean autoInitialize) {
-        super(context, autoInitialize);
         // Allow parallel sync
-        //        super(context, autoInitialize, true);
+        super(context, autoInitialize, true);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle bundle, String authority, ContentProviderClient provider, SyncResult syncResult) {
         DriveSyncer syncer = new DriveSyncer(getContext(), provider, account);
-        // TODO set sync interval and result with SyncResult -> Pass it to syncer ?
-        syncer.performSync();
-        String syncIntervalKey = getContext().getString(R.string.prefs_sync_interval) + account.name;
-        syncResult.delayUntil = PreferenceManager.getDefaultSharedPreferences(getContext()).getLong(syncIntervalKey, 5 * 60);
+        syncer.performSync(syncResult);
+        // Fold the changes of this sync back into the database
+        try {
+            provider.call(KeyringVault.METHOD_CHECKPOINT, null, null);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
     }
 }
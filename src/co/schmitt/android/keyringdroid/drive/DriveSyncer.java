@@ -5,26 +5,30 @@ import android.content.*;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import co.schmitt.android.keyringdroid.*;
 import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.UserRecoverableAuthException;
-import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
-import com.google.api.client.http.FileContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.*;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Created with IntelliJ IDEA.
@@ -40,12 +44,56 @@ public class DriveSyncer {
     private static final String TAG = "DriveSyncAdapter";
 
     private static final String MIME_BINARY = "application/octet-stream";
-    private static final String KEYRING_EXTENSION = "keyring";
+
+    /**
+     * Checkpoint of the sync steps which don't follow a page of changes
+     */
+    private static final long NO_CHECKPOINT = -1;
+
+    /**
+     * Default number of content transfers running in parallel
+     */
+    private static final int DEFAULT_TRANSFER_POOL_SIZE = 4;
+
+    /**
+     * Default maximum size of the chunks of an upload
+     */
+    private static final int DEFAULT_UPLOAD_CHUNK_SIZE = 4 * ResumableUpload.CHUNK_GRANULARITY;
+
+    /**
+     * Size of the buffer content is downloaded through, one per transfer thread
+     */
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Suffix of the temporary files downloads are written to
+     */
+    private static final String DOWNLOAD_SUFFIX = ".part";
+
+    private static final ThreadLocal<byte[]> sDownloadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DOWNLOAD_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Maximum number of files, or changes, per page of a listing
+     */
+    private static final int MAX_LIST_RESULTS = 1000;
+
+    /**
+     * Partial response field masks. Every request only asks for the fields the
+     * sync reads, which keeps responses and their parsing small.
+     */
+    private static final String FILE_FIELDS = "id,title,mimeType,md5Checksum,createdDate,modifiedDate,labels/trashed,parents/id,downloadUrl";
+    private static final String FILE_LIST_FIELDS = "nextPageToken,items(" + FILE_FIELDS + ")";
+    private static final String CHANGE_LIST_FIELDS = "largestChangeId,nextPageToken,items(id,fileId,deleted,file(" + FILE_FIELDS + "))";
 
     /**
      * Projection used for querying the database.
      */
-    private static final String[] PROJECTION = new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_TITLE, KeyringVault.Keyrings.COLUMN_NAME_FILENAME, KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, KeyringVault.Keyrings.COLUMN_NAME_DELETED};
+    private static final String[] PROJECTION = new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_TITLE, KeyringVault.Keyrings.COLUMN_NAME_FILENAME, KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, KeyringVault.Keyrings.COLUMN_NAME_DELETED, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_SIZE, KeyringVault.Keyrings.COLUMN_NAME_CONTENT_MTIME, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SIZE, KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_MTIME};
 
     /**
      * The index of the projection columns
@@ -56,14 +104,34 @@ public class DriveSyncer {
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
     private static final int COLUMN_INDEX_FILE_ID = 4;
     private static final int COLUMN_INDEX_DELETED = 5;
+    private static final int COLUMN_INDEX_UPLOAD_SESSION = 6;
+    private static final int COLUMN_INDEX_CONTENT_HASH = 7;
+    private static final int COLUMN_INDEX_CONTENT_SIZE = 8;
+    private static final int COLUMN_INDEX_CONTENT_MTIME = 9;
+    private static final int COLUMN_INDEX_UPLOAD_SIZE = 10;
+    private static final int COLUMN_INDEX_UPLOAD_MTIME = 11;
 
     private Context mContext;
     private ContentProviderClient mProvider;
     private Account mAccount;
     private Drive mService;
     private String mKeyringsFolderId;
-    private long mLargestChangeId;
+    // The first Drive change the sync applies, -1 before the first sync
+    private long mNextChangeId;
+    // The Drive files whose sync failed past their checkpoint, retried apart
+    // from the changes
+    private Set<String> mRetryFileIds;
     private String mToken;
+    private DriveClient mClient;
+    private SyncSession mSession;
+    private SyncResult mSyncResult;
+    private SyncReport mReport;
+
+    // Local changes of the batch being built, counted in the sync result once
+    // the batch is applied
+    private int mPendingInserts;
+    private int mPendingUpdates;
+    private int mPendingDeletes;
 
     /**
      * Instantiate a new DriveSyncer.
@@ -76,31 +144,94 @@ public class DriveSyncer {
         mContext = context;
         mProvider = provider;
         mAccount = account;
-        mService = getDriveService();
         mKeyringsFolderId = getKeyringsFolderId();
-        mLargestChangeId = getLargestChangeId();
     }
 
     /**
-     * Retrieve the largest change ID for the current user if available.
+     * Retrieve the sync checkpoint of the current user: the first Drive change
+     * not applied yet. Accounts synced before the checkpoints were journaled in
+     * the provider start from the change ID stored in the preferences.
      *
-     * @return The largest change ID, {@code -1} if not available.
+     * @return The next change ID, {@code -1} if the account has never been
+     *         synced.
      */
-    private long getLargestChangeId() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getLong("largest_change_" + mAccount.name, -1);
+    private long getNextChangeId() {
+        Uri uri = KeyringUri.asSyncAdapter(KeyringUri.getCheckpointUri(mAccount.name));
+        try {
+            Cursor cursor = mProvider.query(uri, new String[]{KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID}, null, null, null);
+            if (cursor != null) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        return cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        String largestChangeKey = mContext.getString(R.string.prefs_largest_change);
+        return PreferenceManager.getDefaultSharedPreferences(mContext).getLong(largestChangeKey + mAccount.name, -1);
     }
 
     /**
-     * Store the largest change ID for the current user.
+     * Build the operation storing the sync checkpoint of the current user. It
+     * goes last in the batch of the local changes it covers, so that the
+     * checkpoint is committed if and only if they are.
      *
-     * @param changeId The largest change ID to store.
+     * @param nextChangeId The first Drive change not covered by the batch
+     * @return The operation to append to the batch
      */
-    private void setLargestChangeId(long changeId) {
-        String largestChangeKey = mContext.getString(R.string.prefs_largest_change);
+    private ContentProviderOperation newCheckpoint(long nextChangeId) {
+        return ContentProviderOperation.newInsert(KeyringUri.asSyncAdapter(KeyringUri.getCheckpointUri(mAccount.name)))
+                .withValue(KeyringVault.SyncCheckpoint.COLUMN_NAME_NEXT_CHANGE_ID, nextChangeId)
+                .build();
+    }
+
+    /**
+     * Retrieve the Drive files of the current user whose sync failed in a step
+     * whose checkpoint has been committed anyway. The changes of these files
+     * won't be reported again, so they are synced again with the local keyrings
+     * at the end of every incremental sync, until they succeed.
+     *
+     * @return The file IDs to retry
+     */
+    private Set<String> getRetryFileIds() {
+        String retriesKey = mContext.getString(R.string.prefs_sync_retries) + mAccount.name;
+        return new HashSet<String>(PreferenceManager.getDefaultSharedPreferences(mContext).getStringSet(retriesKey, Collections.<String>emptySet()));
+    }
+
+    /**
+     * Store the Drive files of the current user to retry. They must be stored
+     * before the checkpoint moving past them is committed: if the commit fails,
+     * the files are merely synced once more.
+     *
+     * @param fileIds The file IDs to retry
+     */
+    private void setRetryFileIds(Set<String> fileIds) {
         SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
-        editor.putLong(largestChangeKey + mAccount.name, changeId);
+        editor.putStringSet(mContext.getString(R.string.prefs_sync_retries) + mAccount.name, new HashSet<String>(fileIds));
         editor.commit();
-        mLargestChangeId = changeId;
+        mRetryFileIds = fileIds;
+    }
+
+    /**
+     * Retrieve the number of content transfers to run in parallel.
+     *
+     * @return The size of the transfer pool
+     */
+    private int getTransferPoolSize() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext).getInt(mContext.getString(R.string.prefs_transfer_pool_size), DEFAULT_TRANSFER_POOL_SIZE);
+    }
+
+    /**
+     * Retrieve the maximum size of the chunks of an upload.
+     *
+     * @return The maximum chunk size in bytes
+     */
+    private int getUploadChunkSize() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext).getInt(mContext.getString(R.string.prefs_upload_chunk_size), DEFAULT_UPLOAD_CHUNK_SIZE);
     }
 
     /**
@@ -140,30 +271,32 @@ public class DriveSyncer {
      * API. On failure to retrieve an access token, a notification is sent to the
      * user requesting that authorization be granted for the
      * {@code https://www.googleapis.com/auth/drive.file} scope.
+     * <p/>
+     * The service is the long-lived one of the account, see {@link DriveClient}.
      *
      * @return An authorized service object.
      */
     private Drive getDriveService() {
         if (mService == null) {
-            ArrayList<String> scopes = new ArrayList<String>();
-            scopes.add(DriveScopes.DRIVE);
-            GoogleAccountCredential credential = GoogleAccountCredential.usingOAuth2(mContext, scopes);
-            credential.setSelectedAccountName(mAccount.name);
-            // Trying to get a token right away to see if we are authorized
+            mClient = DriveClient.get(mContext, mAccount.name);
+            // Trying to get a token right away to see if we are authorized. The
+            // token is cached by the client, this only blocks on its first use.
             try {
-                mToken = credential.getToken();//getAccessToken();
+                mToken = mClient.getToken();
             } catch (UserRecoverableAuthException e) {
+                mSyncResult.stats.numAuthExceptions++;
                 // Ask for authorization
                 Intent authRequiredIntent = new Intent(MainActivity.LB_AUTH_APP);
                 authRequiredIntent.putExtra(MainActivity.EXTRA_AUTH_APP_INTENT, e.getIntent());
                 LocalBroadcastManager.getInstance(mContext).sendBroadcast(authRequiredIntent);
             } catch (GoogleAuthException e) {
                 //                Log.e(getClass().getSimpleName(), "Fatal authorization exception", e);
+                mSyncResult.stats.numAuthExceptions++;
                 e.printStackTrace();
             } catch (IOException e) {
-                e.printStackTrace();
+                onIoException(e);
             }
-            mService = new Drive.Builder(AndroidHttp.newCompatibleTransport(), new GsonFactory(), credential).build();
+            mService = mClient.getService();
         }
         return mService;
     }
@@ -171,379 +304,807 @@ public class DriveSyncer {
     /**
      * Perform a synchronization for the current account.
      * <p/>
+     * The statistics of the sync are added to the given result, and its report
+     * is stored along with the previous ones of the account, see
+     * {@link SyncReport}. The next sync is then scheduled from the activity it
+     * saw, see {@link SyncScheduler}.
+     * <p/>
      * TODO Import new Keyrings from Drive
+     *
+     * @param syncResult The result of the sync
      */
-    public void performSync() {
+    public void performSync(SyncResult syncResult) {
+        mSyncResult = syncResult;
+        mReport = new SyncReport(mAccount.name);
+        mService = getDriveService();
         if (mService == null) {
             return;
         }
+        long requests = mClient.getRequestCount();
 
         Log.d(TAG, "Performing sync for " + mAccount.name);
+        mSession = new SyncSession(mService, mContext.getString(R.string.keyring_folder));
+        mNextChangeId = getNextChangeId();
+        mRetryFileIds = getRetryFileIds();
+        try {
+            if (mNextChangeId == -1) {
+                // First sync
+                mReport.setFullSync();
+                performFullSync();
+            } else {
+                performIncrementalSync();
+            }
+        } finally {
+            SyncScheduler.onSyncFinished(mContext, mAccount, mSyncResult, mReport);
+            mReport.finish(mContext, mSyncResult, mClient.getRequestCount() - requests);
+        }
+    }
 
-        if (mLargestChangeId == -1) {
-            // First sync
-            performFullSync();
-        } else {
-            Map<String, File> files = getChangedFiles(mLargestChangeId);
-            Uri uri = KeyringUri.getKeyringsUri(mAccount.name);
-
+    /**
+     * Performs an incremental sync, from the changes since the last sync.
+     * <p/>
+     * The changes are applied one page at a time: each page is a sync step,
+     * planned against the local keyrings it reports, then run, and its local
+     * changes committed in a single batch along with the checkpoint following
+     * the page. An interrupted sync thus resumes right after the last committed
+     * page, and never applies a change twice nor skips one.
+     * <p/>
+     * The operations of a page which fail don't hold its checkpoint back: the
+     * other ones are committed, and the files of the failed ones are retried,
+     * see {@link #getRetryFileIds()}. The local keyrings no change reported are
+     * synced last, along with the files to retry, to upload their local edits.
+     * That last step runs even if the changes could not all be applied, unless
+     * the sync has been cancelled.
+     */
+    private void performIncrementalSync() {
+        try {
+            // The Drive files synced with the changes
+            Set<String> changedFileIds = new HashSet<String>();
             try {
-                Cursor cursor = mProvider.query(uri, PROJECTION, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " IS NOT NULL", null, null);
-                Log.d(TAG, "Got local files: " + cursor.getCount());
-                for (boolean more = cursor.moveToFirst(); more; more = cursor.moveToNext()) {
-                    // Merge.
-                    String fileId = cursor.getString(COLUMN_INDEX_FILE_ID);
-                    Uri localFileUri = KeyringUri.getFileUri(mAccount.name, fileId);
-
-                    Log.d(TAG, "Processing local file with drive ID: " + fileId);
-                    if (files.containsKey(fileId)) {
-                        File driveFile = files.get(fileId);
-                        if (driveFile != null) {
-                            // Merge the files.
-                            mergeFiles(localFileUri, cursor, driveFile);
-                        } else {
-                            Log.d(TAG, "  > Deleting local file: " + fileId);
-                            // The file does not exist in Drive anymore, delete it.
-                            mProvider.delete(localFileUri, null, null);
-                        }
-                        files.remove(fileId);
-                    } else {
-                        // The file has not been updated on Drive, eventually update the Drive file.
-                        File driveFile = mService.files().get(fileId).execute();
-                        mergeFiles(localFileUri, cursor, driveFile);
-                    }
-                    mContext.getContentResolver().notifyChange(localFileUri, null, false);
-                }
+                Drive.Changes.List request = mService.changes().list().setStartChangeId(mNextChangeId).setMaxResults(MAX_LIST_RESULTS).setFields(CHANGE_LIST_FIELDS);
+                boolean lastPage;
+                do {
+                    mReport.enterPhase(SyncReport.Phase.CHANGES);
+                    ChangeList changes = RequestGate.execute(request);
+                    Map<String, File> files = getChangedFiles(changes);
+                    request.setPageToken(changes.getNextPageToken());
+                    lastPage = request.getPageToken() == null || request.getPageToken().length() == 0;
 
-                // Any remaining files in the map are files that do not exist in the local database.
-                insertNewDriveFiles(files.values());
-                setLargestChangeId(mLargestChangeId + 1);
+                    mReport.enterPhase(SyncReport.Phase.MERGE);
+                    long nextChangeId = getNextChangeId(changes, lastPage);
+                    if (!runStep(getLocalKeyrings(files.keySet(), true), files, nextChangeId, new HashSet<String>())) {
+                        // Left to the next sync, from the last committed page
+                        break;
+                    }
+                    changedFileIds.addAll(files.keySet());
+                    mNextChangeId = nextChangeId;
+                } while (!lastPage);
             } catch (IOException e) {
-                e.printStackTrace();
-            } catch (RemoteException e) {
-                e.printStackTrace();
+                // Left to the next sync, from the last committed page
+                onIoException(e);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
             }
+
+            // The local keyrings which have not been updated on Drive, eventually
+            // update their Drive file, and upload the new ones. The files to retry
+            // are synced again, even if a page reported them.
+            mReport.enterPhase(SyncReport.Phase.MERGE);
+            changedFileIds.removeAll(mRetryFileIds);
+            List<LocalKeyring> local = getLocalKeyrings(changedFileIds, false);
+            mReport.enterPhase(SyncReport.Phase.CHANGES);
+            // Look the keyrings folder up if it is unknown, so that the plan only
+            // creates it if it is missing.
+            resolveKeyringsFolder();
+            Set<String> failedFileIds = new HashSet<String>();
+            if (runStep(local, getDriveFiles(local, mRetryFileIds), NO_CHECKPOINT, failedFileIds)) {
+                setRetryFileIds(failedFileIds);
+            }
+        } catch (IOException e) {
+            onIoException(e);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compute the checkpoint following a page of changes.
+     *
+     * @param changes  The page of changes
+     * @param lastPage Whether it is the last page of the changes
+     * @return The first change ID of the next page, or following the largest
+     *         change ID of the account after the last page
+     */
+    private long getNextChangeId(ChangeList changes, boolean lastPage) {
+        if (lastPage) {
+            return changes.getLargestChangeId() + 1;
         }
+        List<Change> items = changes.getItems();
+        if (items == null || items.isEmpty()) {
+            return mNextChangeId;
+        }
+        return Math.max(mNextChangeId, items.get(items.size() - 1).getId() + 1);
     }
 
     /**
      * Performs a full sync, usually occurs the first time a sync occurs for the
-     * account.
+     * account. All the local keyrings are synced with the files of the keyrings
+     * folder, which is created if it can't be found.
      */
     private void performFullSync() {
         Log.d(TAG, "Performing FULL sync for " + mAccount.name);
-        String keyringFolderName = mContext.getString(R.string.keyring_folder);
+        mReport.enterPhase(SyncReport.Phase.CHANGES);
         try {
             // Get the largest change Id first to avoid race conditions.
-            About about = mService.about().get().execute();
-            Drive.Files.List request = mService.files().list().setQ("'" + about.getRootFolderId() + "' in parents " +
-                    "and mimeType='application/vnd.google-apps.folder' " +
-                    "and trashed=false " +
-                    "and title='" + keyringFolderName + "'");
-            FileList files = request.execute();
-            if (files.getItems().size() == 0) {
-                // Keyrings folder NOT found
-                createParentFolder();
-                insertNewLocalFiles();
+            About about = mSession.getAbout();
+            String folderId = mSession.findKeyringsFolder(mKeyringsFolderId);
+            Map<String, File> files;
+            if (folderId == null) {
+                // Keyrings folder NOT found, created by the plan
+                if (mKeyringsFolderId != null) {
+                    setKeyringsFolderId(null);
+                }
+                files = new HashMap<String, File>();
             } else {
                 // Keyrings folder found
-                setKeyringsFolderId(files.getItems().get(0).getId());
-                Log.i(TAG, "Found matching folder : " + mKeyringsFolderId);
-                // TODO filter by fileExtension='keyring' and mimetype='application/octet-stream' instead of searching for matching files afterwards
-                request = mService.files().list().setQ("'" + mKeyringsFolderId + "' in parents and trashed=false"); //and fileExtension='keyring'");
-                Log.d(TAG, "QUERY: " + mService.files().list().getQ());
-                files = request.execute();
-                if (files.getItems().size() > 0) {
-                    List<File> keyringFiles = new ArrayList<File>();
-                    for (File file : files.getItems()) {
-                        if (file.getTitle().endsWith(".keyring")) {
-                            keyringFiles.add(file);
-                        }
-                    }
-                    insertNewDriveFiles(keyringFiles);
-                    setLargestChangeId(about.getLargestChangeId());
+                if (!folderId.equals(mKeyringsFolderId)) {
+                    setKeyringsFolderId(folderId);
                 }
+                Log.i(TAG, "Found matching folder : " + mKeyringsFolderId);
+                files = listKeyringsFolder();
             }
+            // Commit the keyrings along with the change the listing is up to
+            // date with.
+            runStep(getLocalKeyrings(Collections.<String>emptySet(), false), files, about.getLargestChangeId() + 1, new HashSet<String>());
         } catch (IOException e) {
+            onIoException(e);
+        } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
-
     /**
-     * Merge a local file with a Google Drive File.
-     * <p/>
-     * The last modification is used to check which file to sync from. Then, the
-     * md5 checksum of the file is used to check whether or not the file's content
-     * should be sync'ed.
+     * Read a snapshot of the local keyrings of the account, closing the cursor
+     * before any request is sent.
      * <p/>
-     * TODO Delete keyrings that were deleted from drive + Search for duplicates
-     *
-     * @param localFileUri    Local file URI to save local changes against.
-     * @param localFileCursor Local file cursor to retrieve data from.
-     * @param driveFile       Google Drive file.
-     */
-    private void mergeFiles(Uri localFileUri, Cursor localFileCursor, File driveFile) {
-        long localFileModificationDate = localFileCursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
-        String localFilename = localFileCursor.getString(COLUMN_INDEX_FILENAME);
-        java.io.File localFile = new java.io.File(getLocalParentFolderPath(), localFilename);
-        String localMd5 = MD5.calculateMD5(localFile);
-
-        Log.d(TAG, "Modification dates: " + localFileModificationDate + " - " + driveFile.getModifiedDate().getValue());
-        Log.d(TAG, "Processing drive file " + driveFile.getTitle());
-        if (localFileModificationDate > driveFile.getModifiedDate().getValue()) {
-            // Update remote file (Drive)
-            try {
-                if (localFileCursor.getShort(COLUMN_INDEX_DELETED) != 0) {
-                    Log.d(TAG, "  > Deleting Drive file.");
-                    mService.files().delete(driveFile.getId()).execute();
-                    mProvider.delete(localFileUri, null, null);
-                } else {
-                    File updatedFile = null;
-
-                    // Update drive file.
-                    Log.d(TAG, "  > Updating Drive file.");
-                    driveFile.setTitle(localFileCursor.getString(COLUMN_INDEX_TITLE));
-
-                    if (localMd5 != driveFile.getMd5Checksum()) {
-                        // TODO actual merge ! Also: upload/download ?
-                        // Update both content and metadata.
-                        //                        ByteArrayContent content = ByteArrayContent.fromString(TEXT_PLAIN, localNote);
-                        //                        updatedFile = mService.files().update(driveFile.getId(), driveFile, content).execute();
+     * The MD5 checksum stored in the provider is used as long as the size and
+     * modification time of the file match the stored ones, so that an unchanged
+     * file is never read. Otherwise the checksum is computed again, to be stored
+     * along with the local changes of the sync step. Likewise, the session of a
+     * pending upload is dropped if the file changed since the upload started, so
+     * that the upload starts over.
+     *
+     * @param fileIds The Drive File IDs of the keyrings
+     * @param include True to read the keyrings of the given Drive files, false
+     *                to read all the other ones, never uploaded ones included
+     * @return The local keyrings
+     * @throws RemoteException
+     */
+    private List<LocalKeyring> getLocalKeyrings(Set<String> fileIds, boolean include) throws RemoteException {
+        Uri uri = KeyringUri.asSyncAdapter(KeyringUri.getKeyringsUri(mAccount.name));
+        List<LocalKeyring> result = new ArrayList<LocalKeyring>();
+        Cursor cursor = mProvider.query(uri, PROJECTION, null, null, null);
+        try {
+            for (boolean more = cursor.moveToFirst(); more; more = cursor.moveToNext()) {
+                String fileId = cursor.getString(COLUMN_INDEX_FILE_ID);
+                if ((fileId != null && fileIds.contains(fileId)) != include) {
+                    continue;
+                }
+                String filename = cursor.getString(COLUMN_INDEX_FILENAME);
+                boolean deleted = cursor.getShort(COLUMN_INDEX_DELETED) != 0;
+                String md5 = null;
+                boolean md5Changed = false;
+                String uploadSession = cursor.getString(COLUMN_INDEX_UPLOAD_SESSION);
+                java.io.File localFile = new java.io.File(getLocalParentFolderPath(), filename);
+                // A pending upload is only resumed with the content it started with
+                if (uploadSession != null && (cursor.getLong(COLUMN_INDEX_UPLOAD_SIZE) != localFile.length()
+                        || cursor.getLong(COLUMN_INDEX_UPLOAD_MTIME) != localFile.lastModified())) {
+                    Log.d(TAG, filename + " changed since its upload started, starting over");
+                    uploadSession = null;
+                }
+                // The checksum is only compared with the one of an existing Drive file
+                if (fileId != null && !deleted) {
+                    if (!cursor.isNull(COLUMN_INDEX_CONTENT_HASH)
+                            && cursor.getLong(COLUMN_INDEX_CONTENT_SIZE) == localFile.length()
+                            && cursor.getLong(COLUMN_INDEX_CONTENT_MTIME) == localFile.lastModified()) {
+                        md5 = cursor.getString(COLUMN_INDEX_CONTENT_HASH);
                     } else {
-                        // Only update the metadata.
-                        updatedFile = mService.files().update(driveFile.getId(), driveFile).execute();
+                        md5 = MD5.calculateMD5(localFile);
+                        md5Changed = md5 != null;
                     }
-
-                    ContentValues values = new ContentValues();
-                    values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, updatedFile.getModifiedDate().getValue());
-                    mProvider.update(localFileUri, values, null, null);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (RemoteException e) {
-                e.printStackTrace();
+                result.add(new LocalKeyring(cursor.getLong(COLUMN_INDEX_ID), cursor.getString(COLUMN_INDEX_TITLE), filename,
+                        cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE), fileId, deleted, uploadSession, md5, md5Changed));
             }
-        } else if (localFileModificationDate < driveFile.getModifiedDate().getValue()) {
-            // Update local file.
-            Log.d(TAG, "  > Updating local file.");
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, "Got local files: " + result.size());
+        return result;
+    }
 
-            try {
-                if (driveFile.getLabels().getTrashed()) {
-                    //if (driveFile.getExplicitlyTrashed()) {
-                    // Remove local entry
-                    //                    mProvider.delete(localFileUri, null, null);
-                    // Remove local file
-                    if (localFile.delete()) {
-                        Log.d(TAG, "Removed file " + localFile.getName());
-                    }
-                    // Remove Drive file permanently (skip trash)
-                    mService.files().delete(driveFile.getId()).execute();
-                } else {
-                    // Only download the content if it has changed.
-                    if (!localMd5.equals(driveFile.getMd5Checksum())) {
-                        downloadDriveFile(driveFile);
+    /**
+     * Retrieve the Drive files of local keyrings, and the ones to retry, with as
+     * few requests as possible.
+     *
+     * @param local        The local keyrings
+     * @param retryFileIds The file IDs to retry. Those without a local keyring
+     *                     are only retrieved if they are still in the keyrings
+     *                     folder.
+     * @return Map of the Drive files of the keyrings key'ed by their file ID,
+     *         deleted files mapped to null
+     * @throws IOException
+     */
+    private Map<String, File> getDriveFiles(List<LocalKeyring> local, Set<String> retryFileIds) throws IOException {
+        Map<String, File> result = new HashMap<String, File>();
+        // The Drive files of the keyrings folder, only listed if a keyring has
+        // been uploaded.
+        Map<String, File> folderFiles = null;
+        for (LocalKeyring keyring : local) {
+            if (keyring.fileId == null) {
+                continue;
+            }
+            if (folderFiles == null) {
+                folderFiles = listKeyringsFolder();
+            }
+            File driveFile = folderFiles.get(keyring.fileId);
+            if (driveFile == null) {
+                // The file is not in the keyrings folder anymore.
+                try {
+                    driveFile = RequestGate.execute(mService.files().get(keyring.fileId).setFields(FILE_FIELDS));
+                } catch (HttpResponseException e) {
+                    if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                        throw e;
                     }
-                    ContentValues values = new ContentValues();
-                    values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, driveFile.getTitle());
-                    values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, driveFile.getModifiedDate().getValue());
-                    mProvider.update(localFileUri, values, null, null);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (RemoteException e) {
-                e.printStackTrace();
             }
+            result.put(keyring.fileId, driveFile);
         }
+        for (String fileId : retryFileIds) {
+            if (result.containsKey(fileId)) {
+                continue;
+            }
+            // A new Drive file whose download failed
+            if (folderFiles == null) {
+                folderFiles = listKeyringsFolder();
+            }
+            if (folderFiles.containsKey(fileId)) {
+                result.put(fileId, folderFiles.get(fileId));
+            }
+        }
+        return result;
     }
 
     /**
-     * Insert (upload) all new local files in Google Drive.
+     * Plan a sync step, run it, then commit the local changes of the operations
+     * which succeeded in a single batch, along with the checksums computed again
+     * and, unless the sync has been cancelled, the checkpoint following the step.
+     * <p/>
+     * The files of the failed operations are stored as files to retry before the
+     * checkpoint moves past them, see {@link #getRetryFileIds()}.
+     *
+     * @param local         The local keyrings of the step
+     * @param remote        The Drive files of the step key'ed by their file ID,
+     *                      deleted files mapped to null
+     * @param nextChangeId  The checkpoint following the step, or
+     *                      {@link #NO_CHECKPOINT}
+     * @param failedFileIds Set the Drive File IDs of the failed operations are
+     *                      added to
+     * @return True, if the step ran in full, failed operations included, and has
+     *         been committed
+     * @throws RemoteException
      */
-    private void insertNewLocalFiles() {
-        Uri uri = KeyringUri.getKeyringsUri(mAccount.name);
+    private boolean runStep(List<LocalKeyring> local, Map<String, File> remote, long nextChangeId, Set<String> failedFileIds) throws RemoteException {
+        mReport.enterPhase(SyncReport.Phase.MERGE);
+        List<SyncOperation> plan = SyncPlanner.plan(local, remote, mKeyringsFolderId);
+        Log.d(TAG, "Planned: " + plan);
 
-        if (!parentFolderExists()) {
-            createParentFolder();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (LocalKeyring keyring : local) {
+            if (keyring.md5Changed) {
+                operations.add(ContentProviderOperation.newUpdate(getKeyringUri(keyring))
+                        .withValues(getContentValues(keyring.md5, getLocalFile(keyring)))
+                        .build());
+            }
+        }
+        boolean complete = execute(plan, operations, failedFileIds);
+        if (complete && nextChangeId != NO_CHECKPOINT) {
+            if (!mRetryFileIds.containsAll(failedFileIds)) {
+                Set<String> retryFileIds = new HashSet<String>(mRetryFileIds);
+                retryFileIds.addAll(failedFileIds);
+                setRetryFileIds(retryFileIds);
+            }
+            operations.add(newCheckpoint(nextChangeId));
         }
+        return applyBatch(operations) && complete;
+    }
 
+    /**
+     * Run the operations of a plan, then append the local changes of the ones
+     * which succeeded to the batch, in the order of the plan.
+     * <p/>
+     * The operations run in waves, see {@link SyncPlanner#getWaves(List)}: the
+     * ones sending requests to Drive run in parallel on a bounded pool of
+     * transfers, the local ones right away. Operations depending on a failed
+     * one are skipped, and fail as well.
+     * <p/>
+     * If the sync is cancelled, the transfers which haven't started are dropped,
+     * but the running ones are waited for, so that the local changes of those
+     * which succeed are kept: an upload whose Drive File ID got lost would be
+     * uploaded again as a new file by the next sync.
+     *
+     * @param plan          The operations to run
+     * @param operations    Batch the local changes are appended to.
+     * @param failedFileIds Set the Drive File IDs of the failed operations are
+     *                      added to
+     * @return True, if all the operations ran, false if the sync has been
+     *         cancelled
+     */
+    private boolean execute(List<SyncOperation> plan, ArrayList<ContentProviderOperation> operations, Set<String> failedFileIds) {
+        Map<SyncOperation, ContentProviderOperation> results = new HashMap<SyncOperation, ContentProviderOperation>();
+        Set<SyncOperation> failed = new HashSet<SyncOperation>();
+        Map<SyncOperation, Future<ContentProviderOperation>> transfers = new LinkedHashMap<SyncOperation, Future<ContentProviderOperation>>();
+        boolean interrupted = false;
+        SyncReport.Phase previous = mReport.enterPhase(SyncReport.Phase.TRANSFER);
+        TransferPool pool = new TransferPool(getTransferPoolSize());
         try {
-            Cursor cursor = mProvider.query(uri, PROJECTION, KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " is NULL", null, null);
-
-            Log.d(TAG, "Inserting new local files: " + cursor.getCount());
-
-            if (cursor.moveToFirst()) {
-                do {
-                    Uri localFileUri = KeyringUri.getKeyringUri(mAccount.name, cursor.getString(COLUMN_INDEX_ID));
-
-                    if (cursor.getShort(COLUMN_INDEX_DELETED) != 0) {
-                        mProvider.delete(localFileUri, null, null);
+            for (List<SyncOperation> wave : SyncPlanner.getWaves(plan)) {
+                transfers.clear();
+                for (final SyncOperation operation : wave) {
+                    if (!Collections.disjoint(operation.dependencies, failed)) {
+                        failed.add(operation);
+                    } else if (operation.isRemote()) {
+                        transfers.put(operation, pool.submit(new Callable<ContentProviderOperation>() {
+                            @Override
+                            public ContentProviderOperation call() throws IOException {
+                                long start = SystemClock.elapsedRealtime();
+                                try {
+                                    return run(operation);
+                                } finally {
+                                    mReport.addTransferMillis(operation.type, SystemClock.elapsedRealtime() - start);
+                                }
+                            }
+                        }));
                     } else {
-
-                        File newFile = new File();
-                        File insertedFile = null;
-                        String fileName = cursor.getString(COLUMN_INDEX_FILENAME);
-
-                        Log.i(TAG, "Uploading " + fileName);
-
-                        java.io.File localFile = new java.io.File(getLocalParentFolderPath(), fileName);
-                        FileContent mediaContent = new FileContent(null, localFile);
-                        newFile.setTitle(fileName + "_UPLOADEDBYKRD");
-
-
-                        // Set the parent folder.
-                        if (mKeyringsFolderId != null && mKeyringsFolderId.length() > 0) {
-                            newFile.setParents(Arrays.asList(new ParentReference().setId(mKeyringsFolderId)));
-                        }
-
                         try {
-                            insertedFile = mService.files().insert(newFile, mediaContent).execute();
+                            results.put(operation, run(operation));
                         } catch (IOException e) {
-                            e.printStackTrace();
+                            onIoException(e);
+                            failed.add(operation);
                         }
+                    }
+                }
+                // Wait for the wave, the next one may depend on it.
+                for (Map.Entry<SyncOperation, Future<ContentProviderOperation>> transfer : transfers.entrySet()) {
+                    try {
+                        results.put(transfer.getKey(), transfer.getValue().get());
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                        mSyncResult.stats.numIoExceptions++;
+                        failed.add(transfer.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // The sync has been cancelled, keep what has been done so far.
+            interrupted = true;
+            for (Future<ContentProviderOperation> transfer : transfers.values()) {
+                transfer.cancel(false);
+            }
+            for (Map.Entry<SyncOperation, Future<ContentProviderOperation>> transfer : transfers.entrySet()) {
+                try {
+                    results.put(transfer.getKey(), getUninterruptibly(transfer.getValue()));
+                } catch (CancellationException ignored) {
+                    // Never started
+                } catch (ExecutionException ignored) {
+                    // Failed, left to the next sync
+                }
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+            mReport.enterPhase(previous);
+        }
 
-                        // Update the local file to add the file ID.
-                        ContentValues values = new ContentValues();
-                        values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, insertedFile.getModifiedDate().getValue());
-                        values.put(KeyringVault.Keyrings.COLUMN_NAME_CREATE_DATE, insertedFile.getCreatedDate().getValue());
-                        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, insertedFile.getId());
-
-                        mProvider.update(localFileUri, values, null, null);
+        for (SyncOperation operation : plan) {
+            if (failed.contains(operation)) {
+                String fileId = operation.remote != null ? operation.remote.getId() : operation.local != null ? operation.local.fileId : null;
+                if (fileId != null) {
+                    failedFileIds.add(fileId);
+                }
+                continue;
+            }
+            ContentProviderOperation result = results.get(operation);
+            if (result == null) {
+                continue;
+            }
+            operations.add(result);
+            switch (operation.type) {
+                case DOWNLOAD:
+                    if (operation.local == null) {
+                        mPendingInserts++;
+                    } else {
+                        mPendingUpdates++;
                     }
-                } while (cursor.moveToNext());
+                    break;
+                case DELETE_REMOTE:
+                case PURGE_REMOTE:
+                case DELETE_LOCAL:
+                    mPendingDeletes++;
+                    break;
+                default:
+                    mPendingUpdates++;
+                    break;
             }
-        } catch (RemoteException e) {
-            e.printStackTrace();
         }
+        return !interrupted;
     }
 
     /**
-     * Insert new Google Drive files in the local database.
+     * Wait for a transfer, whether the current thread is interrupted or not. The
+     * interrupt status of the thread is kept.
      *
-     * @param driveFiles Collection of Google Drive files to insert.
+     * @param transfer The transfer
+     * @return The result of the transfer
+     * @throws ExecutionException if the transfer failed
      */
-    private void insertNewDriveFiles(Collection<File> driveFiles) {
-        Log.d(TAG, "Inserting new Drive files: " + driveFiles.size());
-        Uri uri = KeyringUri.getKeyringsUri(mAccount.name);
+    private static <T> T getUninterruptibly(Future<T> transfer) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return transfer.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run a single operation of a plan.
+     *
+     * @param operation The operation
+     * @return The local change of the operation, null if there is none
+     * @throws IOException if a request failed.
+     */
+    private ContentProviderOperation run(SyncOperation operation) throws IOException {
+        LocalKeyring keyring = operation.local;
+        File driveFile = operation.remote;
+        switch (operation.type) {
+            case CREATE_FOLDER:
+                createParentFolder();
+                return null;
 
-        for (File driveFile : driveFiles) {
-            String fileName = driveFile.getTitle();
-            if (driveFile != null && fileName != null && fileName.endsWith(KEYRING_EXTENSION)) {
-                ContentValues values = new ContentValues();
+            case UPLOAD: {
+                Log.i(TAG, "Uploading " + keyring.filename);
+                java.io.File localFile = getLocalFile(keyring);
+                File newFile = new File();
+                newFile.setTitle(keyring.filename + "_UPLOADEDBYKRD");
+                // Set the parent folder.
+                if (mKeyringsFolderId != null && mKeyringsFolderId.length() > 0) {
+                    newFile.setParents(Arrays.asList(new ParentReference().setId(mKeyringsFolderId)));
+                }
+                // Resume the upload of a previous sync, if any.
+                File insertedFile = uploadFileToDrive(null, localFile, newFile, keyring.uploadSession, getKeyringUri(keyring));
+                // Update the local file to add the file ID.
+                return newUploaded(keyring, localFile, insertedFile)
+                        .withValue(KeyringVault.Keyrings.COLUMN_NAME_CREATE_DATE, insertedFile.getCreatedDate().getValue())
+                        .withValue(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, insertedFile.getId())
+                        .build();
+            }
+
+            case DOWNLOAD: {
+                ContentValues values = downloadDriveFile(driveFile);
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, driveFile.getTitle());
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, driveFile.getModifiedDate().getValue());
+                if (keyring != null) {
+                    Log.d(TAG, "  > Updating local file.");
+                    return ContentProviderOperation.newUpdate(getKeyringUri(keyring)).withValues(values).build();
+                }
                 values.put(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, mAccount.name);
                 values.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, driveFile.getId());
-                values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, driveFile.getTitle());
                 values.put(KeyringVault.Keyrings.COLUMN_NAME_FILENAME, driveFile.getTitle());
                 values.put(KeyringVault.Keyrings.COLUMN_NAME_CREATE_DATE, driveFile.getCreatedDate().getValue());
-                values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, driveFile.getModifiedDate().getValue());
+                return ContentProviderOperation.newInsert(KeyringUri.asSyncAdapter(KeyringUri.getKeyringsUri(mAccount.name))).withValues(values).build();
+            }
 
-                try {
-                    downloadDriveFile(driveFile);
-                    Log.d(TAG, "MIME-Type:" + driveFile.getMimeType());
-                    mProvider.insert(uri, values);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                }
+            case UPDATE_REMOTE: {
+                // Only update the metadata.
+                Log.d(TAG, "  > Updating Drive file.");
+                File metadata = new File();
+                metadata.setTitle(keyring.title);
+                File updatedFile = RequestGate.execute(mService.files().patch(driveFile.getId(), metadata).setFields(FILE_FIELDS));
+                return ContentProviderOperation.newUpdate(getKeyringUri(keyring))
+                        .withValue(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, updatedFile.getModifiedDate().getValue())
+                        .build();
             }
+
+            case REPLACE_REMOTE: {
+                Log.d(TAG, "  > Uploading Drive file.");
+                File metadata = new File();
+                metadata.setTitle(keyring.title);
+                // Resume the upload of a previous sync, if any.
+                File updatedFile = uploadFileToDrive(driveFile.getId(), getLocalFile(keyring), metadata, keyring.uploadSession, getKeyringUri(keyring));
+                return newUploaded(keyring, getLocalFile(keyring), updatedFile).build();
+            }
+
+            case DELETE_REMOTE:
+                Log.d(TAG, "  > Deleting Drive file.");
+                RequestGate.execute(mService.files().delete(driveFile.getId()));
+                return ContentProviderOperation.newDelete(getKeyringUri(keyring)).build();
+
+            case PURGE_REMOTE:
+                // Remove local file
+                if (getLocalFile(keyring).delete()) {
+                    Log.d(TAG, "Removed file " + keyring.filename);
+                }
+                // Remove Drive file permanently (skip trash)
+                RequestGate.execute(mService.files().delete(driveFile.getId()));
+                return ContentProviderOperation.newDelete(getKeyringUri(keyring)).build();
+
+            case UPDATE_LOCAL:
+                Log.d(TAG, "  > Updating local file.");
+                return ContentProviderOperation.newUpdate(getKeyringUri(keyring))
+                        .withValue(KeyringVault.Keyrings.COLUMN_NAME_TITLE, driveFile.getTitle())
+                        .withValue(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, driveFile.getModifiedDate().getValue())
+                        .build();
+
+            case DELETE_LOCAL:
+                Log.d(TAG, "  > Deleting local file: " + keyring.fileId);
+                return ContentProviderOperation.newDelete(getKeyringUri(keyring)).build();
+
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
         }
-        mContext.getContentResolver().notifyChange(uri, null, false);
     }
 
     /**
-     * Check if the keyrings/ folder already exists.
+     * @param keyring A local keyring
+     * @return The URI of the keyring, as used by the sync adapter
+     */
+    private Uri getKeyringUri(LocalKeyring keyring) {
+        return KeyringUri.asSyncAdapter(KeyringUri.getKeyringUri(mAccount.name, String.valueOf(keyring.id)));
+    }
+
+    /**
+     * Build the local change of a keyring whose content has been uploaded: the
+     * upload is done, and the keyring takes the modification date of its Drive
+     * file.
+     * <p/>
+     * The checksum stored is the one of the file as it is now, which may have
+     * been edited during the upload. In that case the keyring is kept newer than
+     * its Drive file, so that the next sync uploads the edit.
      *
-     * @return True, if /My Files/keyrings/ exists
+     * @param keyring      The local keyring
+     * @param localFile    The uploaded file
+     * @param uploadedFile The Drive file
+     * @return The update of the keyring
+     */
+    private ContentProviderOperation.Builder newUploaded(LocalKeyring keyring, java.io.File localFile, File uploadedFile) {
+        String md5 = MD5.calculateMD5(localFile);
+        long modified = uploadedFile.getModifiedDate().getValue();
+        if (md5 == null || !md5.equalsIgnoreCase(uploadedFile.getMd5Checksum())) {
+            Log.w(TAG, keyring.filename + " changed during its upload");
+            modified++;
+        }
+        return ContentProviderOperation.newUpdate(getKeyringUri(keyring))
+                .withValue(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, modified)
+                .withValues(getUploadValues(null, 0, null, null))
+                .withValues(getContentValues(md5, localFile));
+    }
+
+    /**
+     * @param keyring A local keyring
+     * @return The file of the keyring
      */
-    private boolean parentFolderExists() {
-        String keyringFolderName = mContext.getString(R.string.keyring_folder);
-        boolean exists = false;
+    private java.io.File getLocalFile(LocalKeyring keyring) {
+        return new java.io.File(getLocalParentFolderPath(), keyring.filename);
+    }
+
+    /**
+     * Build the upload columns of a local keyring.
+     *
+     * @param sessionUri      The session URI of the pending upload, null if there
+     *                        is none
+     * @param confirmedOffset The number of bytes Drive has received
+     * @param size            The size of the file when the upload started
+     * @param mtime           The modification time of the file when the upload
+     *                        started
+     * @return The session, its progress, and the file it is tied to
+     */
+    private static ContentValues getUploadValues(String sessionUri, long confirmedOffset, Long size, Long mtime) {
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION, sessionUri);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_OFFSET, confirmedOffset);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SIZE, size);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_MTIME, mtime);
+        return values;
+    }
+
+    /**
+     * Build the content columns of a local keyring file.
+     *
+     * @param md5       The MD5 checksum of the file
+     * @param localFile The local keyring file
+     * @return The checksum, size and modification time of the file
+     */
+    private static ContentValues getContentValues(String md5, java.io.File localFile) {
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH, md5);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_SIZE, localFile.length());
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_MTIME, localFile.lastModified());
+        return values;
+    }
+
+    /**
+     * List all the files of the keyrings folder, trashed ones included, with as
+     * few requests as possible.
+     *
+     * @return Map of the files of the keyrings folder key'ed by their file ID,
+     *         empty if the folder is unknown.
+     * @throws IOException
+     */
+    private Map<String, File> listKeyringsFolder() throws IOException {
+        Map<String, File> result = new HashMap<String, File>();
+        if (mKeyringsFolderId == null) {
+            return result;
+        }
+        Drive.Files.List request = mService.files().list().setQ("'" + mKeyringsFolderId + "' in parents").setMaxResults(MAX_LIST_RESULTS).setFields(FILE_LIST_FIELDS);
+        do {
+            FileList files = RequestGate.execute(request);
+            for (File file : files.getItems()) {
+                result.put(file.getId(), file);
+            }
+            request.setPageToken(files.getNextPageToken());
+        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+        Log.d(TAG, "Listed keyrings folder files: " + result.size());
+        return result;
+    }
+
+    /**
+     * Apply a batch of local changes within a single provider transaction.
+     *
+     * @param operations The operations to apply
+     * @return True, if the batch has been committed
+     * @throws RemoteException
+     */
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations) throws RemoteException {
+        int inserts = mPendingInserts;
+        int updates = mPendingUpdates;
+        int deletes = mPendingDeletes;
+        mPendingInserts = 0;
+        mPendingUpdates = 0;
+        mPendingDeletes = 0;
+        if (operations.isEmpty()) {
+            return true;
+        }
+        SyncReport.Phase previous = mReport.enterPhase(SyncReport.Phase.COMMIT);
         try {
-            // Search by name
-            About about = mService.about().get().execute();
-            Log.i(TAG, "Root folder ID: " + about.getRootFolderId());
-            Drive.Files.List request = mService.files().list().setQ("'" + about.getRootFolderId() + "' in parents " +
-                    "and mimeType='application/vnd.google-apps.folder' " +
-                    "and trashed=false " +
-                    "and title='" + keyringFolderName + "'");
-            FileList files = request.execute();
-            if (files.getItems().size() == 0) {
-                exists = false;
-            } else {
-                setKeyringsFolderId(files.getItems().get(0).getId());
+            mProvider.applyBatch(operations);
+            mSyncResult.stats.numInserts += inserts;
+            mSyncResult.stats.numUpdates += updates;
+            mSyncResult.stats.numDeletes += deletes;
+            return true;
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            mSyncResult.stats.numSkippedEntries += inserts + updates + deletes;
+            return false;
+        } finally {
+            mReport.enterPhase(previous);
+        }
+    }
+
+    /**
+     * Record a network error of the sync.
+     *
+     * @param e The error
+     */
+    private void onIoException(IOException e) {
+        e.printStackTrace();
+        mSyncResult.stats.numIoExceptions++;
+    }
+
+    /**
+     * Look the keyrings/ folder up, unless it is known already. The lookup only
+     * sends requests once per sync, or once more after the folder is gone.
+     *
+     * @return The file ID of keyrings/, null if there is none
+     * @throws IOException if the folder could not be looked up. Nothing must
+     *                     then be filtered by the folder.
+     */
+    private String resolveKeyringsFolder() throws IOException {
+        if (mKeyringsFolderId == null) {
+            String folderId = mSession.findKeyringsFolder(null);
+            if (folderId != null) {
+                setKeyringsFolderId(folderId);
                 Log.i(TAG, "Found matching folder : " + mKeyringsFolderId);
-                exists = true;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return exists;
+        return mKeyringsFolderId;
     }
 
     /**
      * Create a folder named keyrings in the user's root directory
      *
-     * @return The fileID of the newly created folder, null if its creation failed
+     * @return The fileID of the newly created folder
+     * @throws IOException if its creation failed
      */
-    private String createParentFolder() {
+    private String createParentFolder() throws IOException {
         Log.i(TAG, "Found NO matching folder. Creating...");
         File body = new File();
         body.setTitle(mContext.getString(R.string.keyring_folder));
-        body.setMimeType("application/vnd.google-apps.folder");
-        try {
-            File file = mService.files().insert(body).execute();
-            if (file != null) {
-                setKeyringsFolderId(file.getId());
-                return file.getId();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        body.setMimeType(SyncSession.MIME_FOLDER);
+        File file = RequestGate.execute(mService.files().insert(body).setFields("id"));
+        setKeyringsFolderId(file.getId());
+        mSession.setKeyringsFolder(file.getId());
+        return file.getId();
     }
 
     /**
-     * Retrieve a collection of files that have changed since the provided
-     * {@code changeId}.
+     * Retrieve the keyring files of the keyrings folder changed by a page of
+     * changes.
+     * <p/>
+     * The keyrings folder is resolved first, looked up again if the page reports
+     * that it is gone, so that the changes are never filtered by an unknown
+     * folder: a page which can't be filtered is not applied, and its checkpoint
+     * not committed.
+     * <p/>
+     * Deleted files are reported whatever their folder, since their parents are
+     * unknown anymore. Files moved out of the keyrings folder are not reported.
      *
-     * @param changeId Change ID to retrieve changed files from.
-     * @return Map of changed files key'ed by their file ID.
+     * @param changes The page of changes
+     * @return Map of changed files key'ed by their file ID, deleted files mapped
+     *         to null.
+     * @throws IOException if the keyrings folder could not be looked up.
      */
-    private Map<String, File> getChangedFiles(long changeId) {
+    private Map<String, File> getChangedFiles(ChangeList changes) throws IOException {
+        for (Change change : changes.getItems()) {
+            if (change.getFileId().equals(mKeyringsFolderId) && (change.getDeleted() || SyncPlanner.isTrashed(change.getFile()))) {
+                // Forget the keyrings folder, it is looked up again by name.
+                Log.i(TAG, "The keyrings folder is gone: " + mKeyringsFolderId);
+                setKeyringsFolderId(null);
+                mSession.forgetKeyringsFolder();
+            }
+        }
+        resolveKeyringsFolder();
+
         Map<String, File> result = new HashMap<String, File>();
-        // TODO only get through changes in keyrings/ folder ?
-        try {
-            Drive.Changes.List request = mService.changes().list().setStartChangeId(changeId);
-            do {
-                ChangeList changes = request.execute();
-                long largestChangeId = changes.getLargestChangeId();
-
-                for (Change change : changes.getItems()) {
-                    if (change.getDeleted()) {
-                        result.put(change.getFileId(), null);
-                    }
-                    // TODO
-                    else if (MIME_BINARY.equals(change.getFile().getMimeType())) {
-                        String fileName = change.getFile().getTitle();
-                        if (fileName != null && fileName.endsWith(KEYRING_EXTENSION)) {
-                            result.put(change.getFileId(), change.getFile());
-                        }
-                    }
-                }
-                if (largestChangeId > mLargestChangeId) {
-                    setLargestChangeId(largestChangeId);
-                }
-                request.setPageToken(changes.getNextPageToken());
-            } while (request.getPageToken() != null && request.getPageToken().length() > 0);
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (Change change : changes.getItems()) {
+            if (change.getDeleted()) {
+                result.put(change.getFileId(), null);
+            }
+            else if (MIME_BINARY.equals(change.getFile().getMimeType()) && isInKeyringsFolder(change.getFile()) && SyncPlanner.isKeyring(change.getFile())) {
+                result.put(change.getFileId(), change.getFile());
+            }
         }
 
         Log.d(TAG, "Got changed Drive files: " + result.size());
         return result;
     }
 
+    /**
+     * Check if a Drive file is in the keyrings/ folder.
+     *
+     * @param driveFile The file to check
+     * @return True, if one of the parents of the file is keyrings/
+     */
+    private boolean isInKeyringsFolder(File driveFile) {
+        if (mKeyringsFolderId == null || driveFile.getParents() == null) {
+            return false;
+        }
+        for (ParentReference parent : driveFile.getParents()) {
+            if (mKeyringsFolderId.equals(parent.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /**
      * Upload a file to Google Drive
@@ -563,10 +1124,8 @@ public class DriveSyncer {
             body.setParents(Arrays.asList(new ParentReference().setId(mKeyringsFolderId)));
         }
 
-        // File's content.
-        FileContent mediaContent = new FileContent(null, localFile);//new FileContent(mimeType, localFile);
         try {
-            return mService.files().insert(body, mediaContent).execute();
+            return uploadFileToDrive(null, localFile, body, null, null);
         } catch (IOException e) {
             System.out.println("An error occured: " + e);
             return null;
@@ -574,26 +1133,126 @@ public class DriveSyncer {
     }
 
     /**
-     * Download a file from Google Drive to internal storage
+     * Upload a file to Google Drive in resumable chunks. The progress of the
+     * upload is stored in the provider after every chunk, so that an interrupted
+     * upload can be resumed.
+     *
+     * @param fileId       The ID of the Drive file whose content is replaced,
+     *                     null to create a new Drive file
+     * @param localFile    The file to upload
+     * @param metadata     The metadata of the Drive file
+     * @param sessionUri   The session URI of an interrupted upload, null to start
+     *                     a new one
+     * @param localFileUri The URI storing the progress of the upload, null not to
+     *                     store it
+     * @return The uploaded Drive File
+     * @throws IOException if the upload failed
+     */
+    private File uploadFileToDrive(String fileId, java.io.File localFile, File metadata, String sessionUri, final Uri localFileUri) throws IOException {
+        ResumableUpload upload = new ResumableUpload(mService, localFile, FILE_FIELDS, getUploadChunkSize());
+        ResumableUpload.Listener listener = null;
+        if (localFileUri != null) {
+            // The session is tied to the file as it is when the upload starts
+            final long size = localFile.length();
+            final long mtime = localFile.lastModified();
+            listener = new ResumableUpload.Listener() {
+                @Override
+                public void onProgress(String sessionUri, long confirmedOffset) {
+                    try {
+                        mProvider.update(localFileUri, getUploadValues(sessionUri, confirmedOffset, size, mtime), null, null);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        }
+        File uploadedFile;
+        try {
+            uploadedFile = upload.upload(fileId, metadata, sessionUri, listener);
+        } finally {
+            mReport.addBytesUploaded(upload.getBytesSent());
+        }
+        Log.i(TAG, "Uploaded " + localFile.getName() + " at " + upload.getThroughput() + " bytes/s");
+        return uploadedFile;
+    }
+
+    /**
+     * Download a file from Google Drive to internal storage.
+     * <p/>
+     * The content is streamed into a temporary file next to the keyring file,
+     * and its checksum computed while it is written. The temporary file is then
+     * synced to disk and renamed over the keyring file, only if the checksum
+     * matches the one of the Drive file. Readers of the keyring file thus always
+     * see either the previous or the new content, in full.
+     *
+     * @param driveFile The file to download
+     * @return The content columns of the downloaded file
+     * @throws IOException if the download failed or the content is corrupted.
+     *                     The keyring file is left untouched.
+     */
+    private ContentValues downloadDriveFile(final File driveFile) throws IOException {
+        // The request slot is held until the whole content is received, and the
+        // download starts over if Drive is overloaded.
+        return RequestGate.execute(new RequestGate.Call<ContentValues>() {
+            @Override
+            public ContentValues execute() throws IOException {
+                return downloadContent(driveFile);
+            }
+        });
+    }
+
+    /**
+     * Run a single attempt of {@link #downloadDriveFile(File)}.
      *
      * @param driveFile The file to download
-     * @throws IOException
+     * @return The content columns of the downloaded file
+     * @throws IOException if the download failed or the content is corrupted.
      */
-    private void downloadDriveFile(File driveFile) throws IOException {
+    private ContentValues downloadContent(File driveFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 unavailable", e);
+        }
         Log.i(TAG, "Downloading " + driveFile.getDownloadUrl());
         HttpResponse resp = mService.getRequestFactory().buildGetRequest(new GenericUrl(driveFile.getDownloadUrl())).execute();
-        InputStream downloadedFile = resp.getContent();
         java.io.File parentFolder = new java.io.File(getLocalParentFolderPath());
         parentFolder.mkdirs();
-        Log.d(TAG, "Create folder " + parentFolder.getAbsolutePath());
-        FileOutputStream outputStream = new FileOutputStream(parentFolder + java.io.File.separator + driveFile.getTitle(), false);//(driveFile.getTitle(), Context.MODE_PRIVATE);//mContext.openFileOutput(driveFile.getTitle(), Context.MODE_PRIVATE);
-        Log.i(TAG, "Content: " + downloadedFile);
-        byte buffer[] = new byte[1024];
-        int length;
-        while ((length = downloadedFile.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, length);
-        }
-        downloadedFile.close();
-        outputStream.close();
+        java.io.File localFile = new java.io.File(parentFolder, driveFile.getTitle());
+        java.io.File tempFile = java.io.File.createTempFile(driveFile.getTitle(), DOWNLOAD_SUFFIX, parentFolder);
+        boolean renamed = false;
+        try {
+            InputStream downloadedFile = resp.getContent();
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                byte[] buffer = sDownloadBuffer.get();
+                int length;
+                while ((length = downloadedFile.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, length);
+                    digest.update(buffer, 0, length);
+                    mReport.addBytesDownloaded(length);
+                }
+                outputStream.flush();
+                outputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+                downloadedFile.close();
+            }
+
+            String md5 = MD5.toHexString(digest.digest());
+            if (driveFile.getMd5Checksum() != null && !driveFile.getMd5Checksum().equalsIgnoreCase(md5)) {
+                throw new IOException("Checksum mismatch for " + driveFile.getTitle() + ": expected " + driveFile.getMd5Checksum() + ", got " + md5);
+            }
+            if (!tempFile.renameTo(localFile)) {
+                throw new IOException("Unable to move " + tempFile + " to " + localFile);
+            }
+            renamed = true;
+            return getContentValues(md5, localFile);
+        } finally {
+            if (!renamed) {
+                tempFile.delete();
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package co.schmitt.android.keyringdroid.drive;
+
+/**
+ * Snapshot of a keyring row of the provider, as planned by the
+ * {@link SyncPlanner}.
+ * <p/>
+ * Snapshots are read in full before any request is sent, so that no cursor is
+ * held open across the network calls of a sync.
+ */
+final class LocalKeyring {
+    /**
+     * The row ID
+     */
+    final long id;
+    final String title;
+    /**
+     * The name of the keyring file, in the local folder of the account
+     */
+    final String filename;
+    final long modified;
+    /**
+     * The Drive File ID, null if the keyring has never been uploaded
+     */
+    final String fileId;
+    final boolean deleted;
+    /**
+     * The session URI of the pending resumable upload, if any and if the file
+     * hasn't changed since the upload started
+     */
+    final String uploadSession;
+    /**
+     * The MD5 checksum of the keyring file, null if it can't be read
+     */
+    final String md5;
+    /**
+     * Whether the checksum has been computed again, and must be stored
+     */
+    final boolean md5Changed;
+
+    LocalKeyring(long id, String title, String filename, long modified, String fileId, boolean deleted, String uploadSession, String md5, boolean md5Changed) {
+        this.id = id;
+        this.title = title;
+        this.filename = filename;
+        this.modified = modified;
+        this.fileId = fileId;
+        this.deleted = deleted;
+        this.uploadSession = uploadSession;
+        this.md5 = md5;
+        this.md5Changed = md5Changed;
+    }
+}
@@ -0,0 +1,239 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.DriveRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Process-wide scheduler of the Drive HTTP requests.
+ * <p/>
+ * The accounts sync in parallel, each with its own pool of transfers. The gate
+ * is shared by all of them, so that the syncs of many accounts don't open more
+ * connections than the network can carry. Waiting requests are let in first
+ * come, first served, so that a busy account can't starve the others.
+ * <p/>
+ * Requests are also paced by a token bucket shared by all the accounts. Its
+ * rate adapts to the quota signals of Drive: it is halved on every rate limit
+ * or server error response, and slowly raised back on every success, so that
+ * bulk syncs run close to the quota without exceeding it. Such responses also
+ * hold back every request for the delay Drive asks for, if any, and the failed
+ * request is retried after an exponential backoff with jitter.
+ */
+final class RequestGate {
+    private static final String TAG = "RequestGate";
+
+    /**
+     * Maximum number of requests in flight, across all the accounts
+     */
+    static final int MAX_REQUESTS_IN_FLIGHT = 8;
+
+    /**
+     * Bounds of the request rate, in requests per second, and number of
+     * requests that may be sent at once after an idle period
+     */
+    private static final double MAX_RATE = 10;
+    private static final double MIN_RATE = 0.5;
+    private static final double RATE_INCREASE = 0.1;
+    private static final double BURST = 10;
+
+    /**
+     * Backoff of the retried requests: the delay before the n-th retry is
+     * random, up to {@code BACKOFF_BASE_MILLIS * 2^n} within the maximum.
+     */
+    static final int MAX_RETRIES = 5;
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 32000;
+
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private static final Semaphore sSlots = new Semaphore(MAX_REQUESTS_IN_FLIGHT, true);
+    private static final Random sRandom = new Random();
+
+    // Token bucket, guarded by the class
+    private static double sRate = MAX_RATE;
+    private static double sTokens = BURST;
+    private static long sLastRefill = SystemClock.elapsedRealtime();
+    // No request is sent before this elapsed realtime
+    private static long sPausedUntil;
+
+    /**
+     * A request run by the gate, retried if Drive is overloaded.
+     */
+    interface Call<T> {
+        /**
+         * Send the request and read its response.
+         *
+         * @return The result of the request
+         * @throws IOException
+         */
+        T execute() throws IOException;
+    }
+
+    // This class cannot be instantiated
+    private RequestGate() {
+    }
+
+    /**
+     * Execute a Drive request once a slot is available.
+     *
+     * @param request The request to execute
+     * @return The parsed response
+     * @throws IOException
+     */
+    static <T> T execute(final DriveRequest<T> request) throws IOException {
+        return execute(new Call<T>() {
+            @Override
+            public T execute() throws IOException {
+                return request.execute();
+            }
+        });
+    }
+
+    /**
+     * Run a request once a slot is available, holding the slot until the call
+     * returns. The call is run again after a backoff as long as it fails because
+     * Drive is overloaded, up to {@link #MAX_RETRIES} times.
+     *
+     * @param call The request to run
+     * @return The result of the request
+     * @throws IOException if the request failed, or still failed after the
+     *                     last retry.
+     */
+    static <T> T execute(Call<T> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            acquire();
+            try {
+                T result = call.execute();
+                onSuccess();
+                return result;
+            } catch (HttpResponseException e) {
+                if (!isRetryable(e) || attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                onOverloaded(e);
+            } finally {
+                release();
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Wait for a request slot, then for the pace of the requests. Each call must
+     * be followed by a call to {@link #release()} once the request is done,
+     * response included.
+     *
+     * @throws InterruptedIOException if the sync has been cancelled meanwhile.
+     */
+    static void acquire() throws InterruptedIOException {
+        try {
+            sSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+        try {
+            sleep(reserve());
+        } catch (InterruptedIOException e) {
+            sSlots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a request slot.
+     */
+    static void release() {
+        sSlots.release();
+    }
+
+    /**
+     * Check whether a response means that Drive is overloaded, or that the
+     * request quota is exceeded, and that the request should be sent again later.
+     *
+     * @param e The error response
+     * @return True, if the request can be retried
+     */
+    static boolean isRetryable(HttpResponseException e) {
+        int status = e.getStatusCode();
+        if (status == STATUS_TOO_MANY_REQUESTS || status >= 500) {
+            return true;
+        }
+        // Quota errors come as 403 with one of these reasons
+        String content = e.getContent();
+        return status == 403 && content != null && (content.contains("rateLimitExceeded") || content.contains("userRateLimitExceeded"));
+    }
+
+    /**
+     * Record a response meaning that Drive is overloaded: slow down the requests
+     * of all the accounts, and hold them back for the delay Drive asks for.
+     *
+     * @param e The error response
+     */
+    static synchronized void onOverloaded(HttpResponseException e) {
+        sRate = Math.max(MIN_RATE, sRate / 2);
+        String retryAfter = e.getHeaders() != null ? e.getHeaders().getRetryAfter() : null;
+        if (retryAfter != null) {
+            try {
+                sPausedUntil = Math.max(sPausedUntil, SystemClock.elapsedRealtime() + Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException ignored) {
+                // An HTTP date, rely on the backoff instead
+            }
+        }
+        Log.w(TAG, "Drive overloaded (" + e.getStatusCode() + "), slowing down to " + sRate + " requests/s");
+    }
+
+    /**
+     * Wait before the given retry of a request.
+     *
+     * @param attempt The number of the failed attempt, from 0
+     * @throws InterruptedIOException if the sync has been cancelled meanwhile.
+     */
+    static void backOff(int attempt) throws InterruptedIOException {
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_BASE_MILLIS << attempt);
+        long delay;
+        synchronized (RequestGate.class) {
+            delay = (long) (sRandom.nextDouble() * maxDelay);
+        }
+        sleep(delay);
+    }
+
+    /**
+     * Raise the request rate back after a successful request.
+     */
+    private static synchronized void onSuccess() {
+        sRate = Math.min(MAX_RATE, sRate + RATE_INCREASE);
+    }
+
+    /**
+     * Take a token from the bucket, going into debt if it is empty.
+     *
+     * @return The delay before the request may be sent, in milliseconds
+     */
+    private static synchronized long reserve() {
+        long now = SystemClock.elapsedRealtime();
+        sTokens = Math.min(BURST, sTokens + (now - sLastRefill) * sRate / 1000);
+        sLastRefill = now;
+        sTokens -= 1;
+        long delay = sTokens >= 0 ? 0 : (long) Math.ceil(-sTokens * 1000 / sRate);
+        return Math.max(delay, sPausedUntil - now);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+    }
+}
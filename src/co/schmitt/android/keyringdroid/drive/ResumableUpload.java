@@ -0,0 +1,294 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.api.client.http.*;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Resumable, chunked upload of a file to Google Drive, either into a new Drive
+ * file or over the content of an existing one.
+ * <p/>
+ * The upload session URI and the offset confirmed by Drive are reported after
+ * every chunk, so that the caller can persist them. An upload interrupted at any
+ * point, even by the death of the process, then resumes from the last
+ * acknowledged chunk instead of sending the whole file again, and never creates
+ * the file twice.
+ * <p/>
+ * The chunk size adapts to the measured throughput, so that each chunk takes
+ * about {@link #TARGET_CHUNK_MILLIS}, within the maximum chunk size.
+ */
+class ResumableUpload {
+    private static final String TAG = "ResumableUpload";
+
+    /**
+     * Drive requires chunk sizes to be multiples of 256 KB
+     */
+    static final int CHUNK_GRANULARITY = 256 * 1024;
+
+    private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v2/files";
+    private static final String MIME_BINARY = "application/octet-stream";
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final long TARGET_CHUNK_MILLIS = 2000;
+
+    /**
+     * Receives the progress of an upload.
+     */
+    interface Listener {
+        /**
+         * Called once the upload session is started, and after every chunk
+         * acknowledged by Drive.
+         *
+         * @param sessionUri      The upload session URI
+         * @param confirmedOffset The number of bytes Drive has received
+         */
+        void onProgress(String sessionUri, long confirmedOffset);
+    }
+
+    private final Drive mService;
+    private final java.io.File mContent;
+    private final String mFields;
+    private final int mMaxChunkSize;
+    private long mBytesSent;
+    private long mMillisSpent;
+
+    /**
+     * Instantiate a new ResumableUpload.
+     *
+     * @param service      The Drive service to upload with
+     * @param content      The local file to upload
+     * @param fields       The fields of the uploaded Drive file to return
+     * @param maxChunkSize The maximum chunk size, rounded down to a multiple of
+     *                     {@link #CHUNK_GRANULARITY}
+     */
+    ResumableUpload(Drive service, java.io.File content, String fields, int maxChunkSize) {
+        mService = service;
+        mContent = content;
+        mFields = fields;
+        mMaxChunkSize = Math.max(CHUNK_GRANULARITY, maxChunkSize / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+    }
+
+    /**
+     * Upload the file into a new Drive file, resuming a previous session if one
+     * is given.
+     *
+     * @param metadata   The metadata of the new Drive file
+     * @param sessionUri The session URI of a previous attempt, null to start a
+     *                   new upload
+     * @param listener   Receives the progress of the upload, may be null
+     * @return The uploaded Drive file
+     * @throws IOException if the upload failed. It can be resumed from the last
+     *                     reported progress.
+     */
+    File upload(File metadata, String sessionUri, Listener listener) throws IOException {
+        return upload(null, metadata, sessionUri, listener);
+    }
+
+    /**
+     * Upload the file, resuming a previous session if one is given.
+     *
+     * @param fileId     The ID of the Drive file whose content is replaced, null
+     *                   to create a new Drive file
+     * @param metadata   The metadata of the Drive file, only the given fields
+     *                   are changed when updating an existing file
+     * @param sessionUri The session URI of a previous attempt, null to start a
+     *                   new upload
+     * @param listener   Receives the progress of the upload, may be null
+     * @return The uploaded Drive file
+     * @throws IOException if the upload failed. It can be resumed from the last
+     *                     reported progress.
+     */
+    File upload(String fileId, File metadata, String sessionUri, Listener listener) throws IOException {
+        long length = mContent.length();
+        long offset = 0;
+
+        // Ask Drive how much of the previous session it received
+        if (sessionUri != null) {
+            HttpResponse response = sendChunk(sessionUri, null, 0, 0, length);
+            if (response.isSuccessStatusCode()) {
+                return response.parseAs(File.class);
+            }
+            if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                offset = getConfirmedOffset(response);
+                response.ignore();
+                Log.d(TAG, "Resuming upload of " + mContent.getName() + " at " + offset + "/" + length);
+            } else if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND || response.getStatusCode() == 410) {
+                // The session expired, start over
+                response.ignore();
+                sessionUri = null;
+            } else {
+                throw new HttpResponseException(response);
+            }
+        }
+        if (sessionUri == null) {
+            sessionUri = startSession(fileId, metadata, length);
+            if (listener != null) {
+                listener.onProgress(sessionUri, 0);
+            }
+        }
+
+        RandomAccessFile input = new RandomAccessFile(mContent, "r");
+        try {
+            byte[] buffer = new byte[mMaxChunkSize];
+            int chunkSize = CHUNK_GRANULARITY;
+            int retries = 0;
+            while (true) {
+                int chunkLength = (int) Math.min(chunkSize, length - offset);
+                input.seek(offset);
+                input.readFully(buffer, 0, chunkLength);
+
+                long start = SystemClock.elapsedRealtime();
+                HttpResponse response = sendChunk(sessionUri, buffer, chunkLength, offset, length);
+                if (response.isSuccessStatusCode()) {
+                    recordThroughput(chunkLength, SystemClock.elapsedRealtime() - start);
+                    return response.parseAs(File.class);
+                }
+                if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+                    HttpResponseException error = new HttpResponseException(response);
+                    if (!RequestGate.isRetryable(error) || retries >= RequestGate.MAX_RETRIES) {
+                        throw error;
+                    }
+                    // Drive is overloaded, wait then ask how much of the chunk it got
+                    RequestGate.onOverloaded(error);
+                    RequestGate.backOff(retries++);
+                    HttpResponse status = sendChunk(sessionUri, null, 0, 0, length);
+                    if (status.isSuccessStatusCode()) {
+                        return status.parseAs(File.class);
+                    }
+                    if (status.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+                        throw new HttpResponseException(status);
+                    }
+                    offset = getConfirmedOffset(status);
+                    status.ignore();
+                    chunkSize = CHUNK_GRANULARITY;
+                    continue;
+                }
+                retries = 0;
+                long confirmedOffset = getConfirmedOffset(response);
+                response.ignore();
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                recordThroughput(confirmedOffset - offset, elapsed);
+                offset = confirmedOffset;
+                if (listener != null) {
+                    listener.onProgress(sessionUri, offset);
+                }
+                chunkSize = getNextChunkSize(chunkLength, elapsed);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return The average upload throughput of this upload, in bytes per second,
+     *         0 if nothing has been sent yet
+     */
+    long getThroughput() {
+        return mMillisSpent > 0 ? mBytesSent * 1000 / mMillisSpent : 0;
+    }
+
+    /**
+     * @return The number of bytes sent and acknowledged by Drive so far
+     */
+    long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Start an upload session: files.insert for a new Drive file, files.update
+     * for an existing one.
+     *
+     * @param fileId   The ID of the Drive file to update, null for a new one
+     * @param metadata The metadata of the Drive file
+     * @param length   The length of the content
+     * @return The upload session URI
+     * @throws IOException
+     */
+    private String startSession(String fileId, File metadata, long length) throws IOException {
+        GenericUrl url = new GenericUrl(fileId != null ? UPLOAD_URL + "/" + fileId : UPLOAD_URL);
+        url.set("uploadType", "resumable");
+        url.set("fields", mFields);
+        JsonHttpContent content = new JsonHttpContent(mService.getJsonFactory(), metadata);
+        final HttpRequest request = fileId != null ? mService.getRequestFactory().buildPutRequest(url, content)
+                : mService.getRequestFactory().buildPostRequest(url, content);
+        request.getHeaders().set("X-Upload-Content-Type", MIME_BINARY);
+        request.getHeaders().set("X-Upload-Content-Length", length);
+        HttpResponse response = RequestGate.execute(new RequestGate.Call<HttpResponse>() {
+            @Override
+            public HttpResponse execute() throws IOException {
+                return request.execute();
+            }
+        });
+        try {
+            return response.getHeaders().getLocation();
+        } finally {
+            response.ignore();
+        }
+    }
+
+    /**
+     * Send a chunk of content to an upload session.
+     *
+     * @param sessionUri The upload session URI
+     * @param buffer     The chunk, null to only ask for the session status
+     * @param length     The length of the chunk
+     * @param offset     The offset of the chunk in the content
+     * @param total      The length of the content
+     * @return The response, whatever its status
+     * @throws IOException
+     */
+    private HttpResponse sendChunk(String sessionUri, byte[] buffer, int length, long offset, long total) throws IOException {
+        HttpContent content = new ByteArrayContent(MIME_BINARY, buffer != null ? buffer : new byte[0], 0, length);
+        HttpRequest request = mService.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), content);
+        request.getHeaders().setContentRange(length > 0 ? "bytes " + offset + "-" + (offset + length - 1) + "/" + total : "bytes */" + total);
+        request.setParser(mService.getObjectParser());
+        request.setFollowRedirects(false);
+        request.setThrowExceptionOnExecuteError(false);
+        // The request slot is held while the chunk is sent
+        RequestGate.acquire();
+        try {
+            return request.execute();
+        } finally {
+            RequestGate.release();
+        }
+    }
+
+    /**
+     * Read the number of bytes Drive received from a resume incomplete response.
+     *
+     * @param response A response with the resume incomplete status
+     * @return The confirmed offset, 0 if Drive received nothing
+     */
+    private static long getConfirmedOffset(HttpResponse response) {
+        // Example: Range: bytes=0-524287
+        String range = response.getHeaders().getRange();
+        if (range == null || range.indexOf('-') < 0) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+    }
+
+    /**
+     * Size the next chunk from the throughput of the last one.
+     *
+     * @param lastLength  The length of the last chunk
+     * @param lastElapsed The time the last chunk took, in milliseconds
+     * @return The size of the next chunk
+     */
+    private int getNextChunkSize(int lastLength, long lastElapsed) {
+        long targetSize = lastLength * TARGET_CHUNK_MILLIS / Math.max(1, lastElapsed);
+        long chunkSize = targetSize / CHUNK_GRANULARITY * CHUNK_GRANULARITY;
+        return (int) Math.max(CHUNK_GRANULARITY, Math.min(mMaxChunkSize, chunkSize));
+    }
+
+    private void recordThroughput(long bytes, long millis) {
+        mBytesSent += bytes;
+        mMillisSpent += millis;
+        Log.d(TAG, "Uploaded " + bytes + " bytes of " + mContent.getName() + " in " + millis + " ms");
+    }
+}
@@ -0,0 +1,101 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A step of a sync plan, see {@link SyncPlanner}.
+ * <p/>
+ * An operation runs once all of its dependencies succeeded. Operations without
+ * dependencies between them may run in parallel.
+ */
+final class SyncOperation {
+
+    /**
+     * The kinds of operations
+     */
+    enum Type {
+        /**
+         * Create the keyrings folder on Drive
+         */
+        CREATE_FOLDER,
+        /**
+         * Upload a keyring which has never been uploaded, into the keyrings folder
+         */
+        UPLOAD,
+        /**
+         * Download the content of a Drive file, into a new keyring if there is no
+         * local one
+         */
+        DOWNLOAD,
+        /**
+         * Update the metadata of a Drive file from its newer local keyring of the
+         * same content
+         */
+        UPDATE_REMOTE,
+        /**
+         * Upload the content and metadata of a Drive file from its newer local
+         * keyring of another content
+         */
+        REPLACE_REMOTE,
+        /**
+         * Delete a Drive file along with its keyring, deleted locally
+         */
+        DELETE_REMOTE,
+        /**
+         * Delete a Drive file trashed on Drive, along with its keyring and file
+         */
+        PURGE_REMOTE,
+        /**
+         * Update the metadata of a keyring from its newer Drive file of the same
+         * content
+         */
+        UPDATE_LOCAL,
+        /**
+         * Delete a keyring, deleted on Drive or never uploaded
+         */
+        DELETE_LOCAL
+    }
+
+    final Type type;
+    /**
+     * The local keyring, null for a new Drive file or the keyrings folder
+     */
+    final LocalKeyring local;
+    /**
+     * The Drive file, null for a new keyring or the keyrings folder
+     */
+    final File remote;
+    final List<SyncOperation> dependencies = new ArrayList<SyncOperation>();
+
+    SyncOperation(Type type, LocalKeyring local, File remote) {
+        this.type = type;
+        this.local = local;
+        this.remote = remote;
+    }
+
+    /**
+     * Make this operation wait for another one.
+     *
+     * @param operation The operation to run first
+     * @return This operation
+     */
+    SyncOperation dependOn(SyncOperation operation) {
+        dependencies.add(operation);
+        return this;
+    }
+
+    /**
+     * @return Whether the operation sends requests to Drive
+     */
+    boolean isRemote() {
+        return type != Type.UPDATE_LOCAL && type != Type.DELETE_LOCAL;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + (local != null ? local.filename : remote != null ? remote.getTitle() : "") + ")";
+    }
+}
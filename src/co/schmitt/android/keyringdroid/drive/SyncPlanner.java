@@ -0,0 +1,176 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.*;
+
+/**
+ * Plans the operations of a sync step.
+ * <p/>
+ * The planner diffs a snapshot of the local keyrings against a snapshot of
+ * their Drive files into a list of {@link SyncOperation}s, in the order their
+ * local changes are to be committed. It sends no request and touches neither
+ * the provider nor the files, so that plans can be tested and benchmarked
+ * without the network; the sync adapter then runs them, see
+ * {@link DriveSyncer}.
+ * <p/>
+ * The last modification is used to check which side to sync from. Then, the
+ * md5 checksum of the file is used to check whether or not the file's content
+ * should be downloaded, or uploaded.
+ */
+final class SyncPlanner {
+
+    private static final String KEYRING_EXTENSION = "keyring";
+
+    // This class cannot be instantiated
+    private SyncPlanner() {
+    }
+
+    /**
+     * Plan a sync step.
+     * <p/>
+     * Local keyrings whose Drive file is not in the remote snapshot are left
+     * untouched, so that a step may cover only some of the keyrings. Keyrings
+     * which have never been uploaded are uploaded, after the creation of the
+     * keyrings folder if it is unknown. Drive files of the remote snapshot
+     * without a local keyring are downloaded into new ones.
+     *
+     * @param local    The local keyrings of the step
+     * @param remote   The Drive files of the step key'ed by their file ID,
+     *                 deleted files mapped to null
+     * @param folderId The file ID of the keyrings folder, null if it has to be
+     *                 created
+     * @return The operations of the step
+     */
+    static List<SyncOperation> plan(Collection<LocalKeyring> local, Map<String, File> remote, String folderId) {
+        List<SyncOperation> plan = new ArrayList<SyncOperation>();
+        Set<String> merged = new HashSet<String>();
+        SyncOperation createFolder = null;
+
+        for (LocalKeyring keyring : local) {
+            if (keyring.fileId == null) {
+                if (keyring.deleted) {
+                    // Never uploaded, nothing to delete on Drive
+                    plan.add(new SyncOperation(SyncOperation.Type.DELETE_LOCAL, keyring, null));
+                } else {
+                    SyncOperation upload = new SyncOperation(SyncOperation.Type.UPLOAD, keyring, null);
+                    if (folderId == null) {
+                        if (createFolder == null) {
+                            createFolder = new SyncOperation(SyncOperation.Type.CREATE_FOLDER, null, null);
+                            plan.add(createFolder);
+                        }
+                        upload.dependOn(createFolder);
+                    }
+                    plan.add(upload);
+                }
+            } else if (remote.containsKey(keyring.fileId)) {
+                merged.add(keyring.fileId);
+                SyncOperation operation = merge(keyring, remote.get(keyring.fileId));
+                if (operation != null) {
+                    plan.add(operation);
+                }
+            }
+        }
+
+        // Any remaining files are files that do not exist in the local database.
+        for (Map.Entry<String, File> entry : remote.entrySet()) {
+            File driveFile = entry.getValue();
+            if (driveFile != null && !merged.contains(entry.getKey()) && isKeyring(driveFile) && !isTrashed(driveFile)) {
+                plan.add(new SyncOperation(SyncOperation.Type.DOWNLOAD, null, driveFile));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Plan the merge of a local keyring with its Drive file.
+     * <p/>
+     * TODO Search for duplicates
+     *
+     * @param keyring   The local keyring
+     * @param driveFile The Drive file, null if it has been deleted
+     * @return The operation, null if the keyring is up to date
+     */
+    private static SyncOperation merge(LocalKeyring keyring, File driveFile) {
+        if (driveFile == null) {
+            // The file does not exist in Drive anymore, delete it.
+            return new SyncOperation(SyncOperation.Type.DELETE_LOCAL, keyring, null);
+        }
+        long remoteModified = driveFile.getModifiedDate().getValue();
+        if (keyring.modified > remoteModified) {
+            if (keyring.deleted) {
+                return new SyncOperation(SyncOperation.Type.DELETE_REMOTE, keyring, driveFile);
+            }
+            // TODO actual merge ! The local keyring overwrites the Drive file.
+            // Only upload the content if it has changed.
+            if (keyring.md5 != null && !keyring.md5.equals(driveFile.getMd5Checksum())) {
+                return new SyncOperation(SyncOperation.Type.REPLACE_REMOTE, keyring, driveFile);
+            }
+            return new SyncOperation(SyncOperation.Type.UPDATE_REMOTE, keyring, driveFile);
+        } else if (keyring.modified < remoteModified) {
+            if (isTrashed(driveFile)) {
+                return new SyncOperation(SyncOperation.Type.PURGE_REMOTE, keyring, driveFile);
+            }
+            // Only download the content if it has changed.
+            if (keyring.md5 == null || !keyring.md5.equals(driveFile.getMd5Checksum())) {
+                return new SyncOperation(SyncOperation.Type.DOWNLOAD, keyring, driveFile);
+            }
+            return new SyncOperation(SyncOperation.Type.UPDATE_LOCAL, keyring, driveFile);
+        }
+        return null;
+    }
+
+    /**
+     * Sort the operations of a plan in waves: every operation runs in a later
+     * wave than its dependencies, so that the operations of a wave may run in
+     * parallel. Within a wave, the operations keep their order in the plan.
+     *
+     * @param plan The operations of the plan
+     * @return The waves of operations, in the order they must run
+     */
+    static List<List<SyncOperation>> getWaves(List<SyncOperation> plan) {
+        Map<SyncOperation, Integer> levels = new HashMap<SyncOperation, Integer>();
+        List<List<SyncOperation>> waves = new ArrayList<List<SyncOperation>>();
+        for (SyncOperation operation : plan) {
+            int level = getLevel(operation, levels);
+            while (waves.size() <= level) {
+                waves.add(new ArrayList<SyncOperation>());
+            }
+            waves.get(level).add(operation);
+        }
+        return waves;
+    }
+
+    private static int getLevel(SyncOperation operation, Map<SyncOperation, Integer> levels) {
+        Integer level = levels.get(operation);
+        if (level == null) {
+            level = 0;
+            for (SyncOperation dependency : operation.dependencies) {
+                level = Math.max(level, getLevel(dependency, levels) + 1);
+            }
+            levels.put(operation, level);
+        }
+        return level;
+    }
+
+    /**
+     * Check if a Drive file is a keyring file.
+     *
+     * @param driveFile The file to check
+     * @return True, if the file has the keyring extension
+     */
+    static boolean isKeyring(File driveFile) {
+        String fileName = driveFile.getTitle();
+        return fileName != null && fileName.endsWith(KEYRING_EXTENSION);
+    }
+
+    /**
+     * Check if a Drive file is in the trash.
+     *
+     * @param driveFile The file to check
+     * @return True, if the file is trashed
+     */
+    static boolean isTrashed(File driveFile) {
+        return driveFile != null && driveFile.getLabels() != null && Boolean.TRUE.equals(driveFile.getLabels().getTrashed());
+    }
+}
@@ -0,0 +1,206 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import co.schmitt.android.keyringdroid.R;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters of a single sync of an account.
+ * <p/>
+ * The time of the sync is split between its phases: the sync thread is always
+ * in exactly one phase, entered with {@link #enterPhase(Phase)}, so that the
+ * phase timings add up to the duration of the sync. The phases follow the
+ * sync: the authentication, the listing of the changes, their merge into a plan
+ * of operations, the transfers of the plan and the commit of their results.
+ * <p/>
+ * The transfers run in parallel, so their phase is further split by direction:
+ * the time spent by the transfer threads downloading from Drive, and uploading
+ * or sending any other change to Drive. Those timings overlap, and may add up to
+ * more than the transfer phase itself. They and the byte counters may be updated
+ * from the transfer threads.
+ * <p/>
+ * Once finished, the report is logged and stored along with the previous ones
+ * of the account, keeping the last {@link #MAX_REPORTS}.
+ */
+class SyncReport {
+    private static final String TAG = "SyncReport";
+
+    /**
+     * Number of reports kept per account
+     */
+    static final int MAX_REPORTS = 10;
+
+    /**
+     * The phases of a sync
+     */
+    enum Phase {
+        AUTH, CHANGES, MERGE, TRANSFER, COMMIT
+    }
+
+    private final String mAccount;
+    private final long mStartTime = System.currentTimeMillis();
+    private final long[] mPhaseMillis = new long[Phase.values().length];
+    private Phase mPhase = Phase.AUTH;
+    private long mPhaseStart = SystemClock.elapsedRealtime();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private final AtomicLong mBytesUploaded = new AtomicLong();
+    private final AtomicLong mDownloadMillis = new AtomicLong();
+    private final AtomicLong mUploadMillis = new AtomicLong();
+    private boolean mFullSync;
+    private long mInterval = -1;
+    private String mIntervalReason;
+
+    /**
+     * Start the report of a sync, in the {@link Phase#AUTH} phase.
+     *
+     * @param account The account name
+     */
+    SyncReport(String account) {
+        mAccount = account;
+    }
+
+    /**
+     * Switch the sync to another phase.
+     *
+     * @param phase The phase the sync enters
+     * @return The phase the sync leaves, to enter again once the new one is over
+     */
+    synchronized Phase enterPhase(Phase phase) {
+        long now = SystemClock.elapsedRealtime();
+        mPhaseMillis[mPhase.ordinal()] += now - mPhaseStart;
+        mPhaseStart = now;
+        Phase previous = mPhase;
+        mPhase = phase;
+        return previous;
+    }
+
+    /**
+     * Record that the sync is a full sync.
+     */
+    synchronized void setFullSync() {
+        mFullSync = true;
+    }
+
+    /**
+     * Record the interval of the next periodic sync, see {@link SyncScheduler}.
+     *
+     * @param interval The interval, in seconds
+     * @param reason   Why the sync is scheduled at this interval
+     */
+    synchronized void setSchedule(long interval, String reason) {
+        mInterval = interval;
+        mIntervalReason = reason;
+    }
+
+    void addBytesDownloaded(long bytes) {
+        mBytesDownloaded.addAndGet(bytes);
+    }
+
+    void addBytesUploaded(long bytes) {
+        mBytesUploaded.addAndGet(bytes);
+    }
+
+    /**
+     * Record the time taken by a remote operation, as a download if it is one or
+     * as an upload otherwise.
+     *
+     * @param type   The type of the operation
+     * @param millis The time it took, in milliseconds
+     */
+    void addTransferMillis(SyncOperation.Type type, long millis) {
+        if (type == SyncOperation.Type.DOWNLOAD) {
+            mDownloadMillis.addAndGet(millis);
+        } else {
+            mUploadMillis.addAndGet(millis);
+        }
+    }
+
+    /**
+     * End the report, then log and store it.
+     *
+     * @param context    Context to store the report with.
+     * @param syncResult The result of the sync
+     * @param requests   The number of Drive requests the sync sent
+     */
+    void finish(Context context, SyncResult syncResult, long requests) {
+        enterPhase(mPhase);
+        try {
+            JSONObject result = new JSONObject();
+            result.put("start", mStartTime);
+            result.put("full", mFullSync);
+            long total = 0;
+            JSONObject phases = new JSONObject();
+            for (Phase phase : Phase.values()) {
+                phases.put(phase.name().toLowerCase(), mPhaseMillis[phase.ordinal()]);
+                total += mPhaseMillis[phase.ordinal()];
+            }
+            result.put("millis", total);
+            result.put("phases", phases);
+            JSONObject transfers = new JSONObject();
+            transfers.put("download", mDownloadMillis.get());
+            transfers.put("upload", mUploadMillis.get());
+            result.put("transfers", transfers);
+            result.put("requests", requests);
+            result.put("bytesDownloaded", mBytesDownloaded.get());
+            result.put("bytesUploaded", mBytesUploaded.get());
+            result.put("inserts", syncResult.stats.numInserts);
+            result.put("updates", syncResult.stats.numUpdates);
+            result.put("deletes", syncResult.stats.numDeletes);
+            result.put("ioExceptions", syncResult.stats.numIoExceptions);
+            result.put("authExceptions", syncResult.stats.numAuthExceptions);
+            result.put("interval", mInterval);
+            result.put("intervalReason", mIntervalReason);
+            Log.i(TAG, "Synced " + mAccount + ": " + result);
+            save(context, result);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Store a report first in the list of the account, dropping the oldest ones.
+     *
+     * @param context Context to store the report with.
+     * @param report  The report
+     * @throws JSONException
+     */
+    private void save(Context context, JSONObject report) throws JSONException {
+        JSONArray previous = load(context, mAccount);
+        JSONArray reports = new JSONArray();
+        reports.put(report);
+        for (int i = 0; i < previous.length() && reports.length() < MAX_REPORTS; i++) {
+            reports.put(previous.get(i));
+        }
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putString(context.getString(R.string.prefs_sync_reports) + mAccount, reports.toString());
+        editor.commit();
+    }
+
+    /**
+     * Retrieve the stored reports of an account.
+     *
+     * @param context Context to read the reports with.
+     * @param account The account name
+     * @return The last reports of the account, the most recent first
+     */
+    static JSONArray load(Context context, String account) {
+        String reports = PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.prefs_sync_reports) + account, null);
+        if (reports != null) {
+            try {
+                return new JSONArray(reports);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        return new JSONArray();
+    }
+}
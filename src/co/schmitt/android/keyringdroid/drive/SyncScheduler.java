@@ -0,0 +1,91 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import co.schmitt.android.keyringdroid.KeyringVault;
+import co.schmitt.android.keyringdroid.R;
+
+/**
+ * Schedules the syncs of the accounts.
+ * <p/>
+ * Each account is synced periodically, at an interval learned from its
+ * activity: the changes applied by its last sync, from the change feed or
+ * uploaded. The interval is halved after every sync that saw activity, down to
+ * {@link #MIN_INTERVAL}, and doubled after every idle one, up to
+ * {@link #MAX_INTERVAL}. Busy accounts are thus synced every minute, while idle
+ * ones back off to a daily sync.
+ * <p/>
+ * Local edits don't wait for the next periodic sync: the provider notifies them
+ * to the sync manager, which runs an upload sync once a burst of edits is over.
+ * Their uploads are counted as changes of that sync.
+ */
+final class SyncScheduler {
+    private static final String TAG = "SyncScheduler";
+
+    /**
+     * Bounds of the sync interval, in seconds
+     */
+    static final long DEFAULT_INTERVAL = 5 * 60;
+    static final long MIN_INTERVAL = 60;
+    static final long MAX_INTERVAL = 24 * 60 * 60;
+
+    /**
+     * Number of changes in a single sync above which the account is synced at
+     * the minimum interval right away
+     */
+    private static final int BUSY_CHANGES = 10;
+
+    // This class cannot be instantiated
+    private SyncScheduler() {
+    }
+
+    /**
+     * Learn from a finished sync of an account, and schedule its next periodic
+     * sync accordingly. The new interval and the reason for it are added to the
+     * report of the sync.
+     *
+     * @param context    Context to store the interval with.
+     * @param account    The account
+     * @param syncResult The result of the sync
+     * @param report     The report of the sync
+     */
+    static void onSyncFinished(Context context, Account account, SyncResult syncResult, SyncReport report) {
+        long changes = syncResult.stats.numInserts + syncResult.stats.numUpdates + syncResult.stats.numDeletes;
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String syncIntervalKey = context.getString(R.string.prefs_sync_interval) + account.name;
+        long interval = preferences.getLong(syncIntervalKey, DEFAULT_INTERVAL);
+        long nextInterval;
+        String reason;
+        if (syncResult.hasError()) {
+            // Nothing learned, the sync manager retries on its own.
+            nextInterval = interval;
+            reason = "error";
+        } else if (changes >= BUSY_CHANGES) {
+            nextInterval = MIN_INTERVAL;
+            reason = "busy: " + changes + " changes";
+        } else if (changes > 0) {
+            nextInterval = Math.max(MIN_INTERVAL, interval / 2);
+            reason = "active: " + changes + " changes";
+        } else {
+            nextInterval = Math.min(MAX_INTERVAL, interval * 2);
+            reason = "idle";
+        }
+        report.setSchedule(nextInterval, reason);
+
+        if (nextInterval != interval || !preferences.contains(syncIntervalKey)) {
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putLong(syncIntervalKey, nextInterval);
+            editor.commit();
+            // Replaces the periodic sync of the account, which has the same extras
+            ContentResolver.addPeriodicSync(account, KeyringVault.AUTHORITY, new Bundle(), nextInterval);
+            Log.d(TAG, "Syncing " + account.name + " every " + nextInterval + "s (" + reason + ")");
+        }
+    }
+}
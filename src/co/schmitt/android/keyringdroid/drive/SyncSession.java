@@ -0,0 +1,135 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.util.Log;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+
+/**
+ * Drive lookups shared by the steps of a single sync of an account.
+ * <p/>
+ * The About resource and the keyrings folder are looked up at most once per
+ * sync, whichever step asks first. The lookups are synchronized, so that a step
+ * asking while the same lookup is in flight waits for its result instead of
+ * sending the request again.
+ * <p/>
+ * The About resource holds the largest change ID, so it isn't kept across
+ * syncs. The keyrings folder ID is persisted by the syncer. A persisted ID is
+ * only checked with a single GET before it is trusted by a full sync, and
+ * incremental syncs rely on the change feed to learn that it is gone.
+ */
+class SyncSession {
+    private static final String TAG = "SyncSession";
+
+    static final String MIME_FOLDER = "application/vnd.google-apps.folder";
+
+    /**
+     * Partial response field masks
+     */
+    private static final String ABOUT_FIELDS = "rootFolderId,largestChangeId";
+    private static final String FOLDER_FIELDS = "id,mimeType,labels/trashed";
+    private static final String FOLDER_LIST_FIELDS = "items(id)";
+
+    private final Drive mService;
+    private final String mFolderName;
+
+    private About mAbout;
+    private boolean mFolderResolved;
+    private String mFolderId;
+
+    /**
+     * Instantiate a new SyncSession.
+     *
+     * @param service    The Drive service of the account
+     * @param folderName The title of the keyrings folder
+     */
+    SyncSession(Drive service, String folderName) {
+        mService = service;
+        mFolderName = folderName;
+    }
+
+    /**
+     * Retrieve the About resource of the account, as of the first call in this
+     * session.
+     *
+     * @return The About resource, with its root folder ID and largest change ID
+     * @throws IOException
+     */
+    synchronized About getAbout() throws IOException {
+        if (mAbout == null) {
+            mAbout = RequestGate.execute(mService.about().get().setFields(ABOUT_FIELDS));
+            Log.i(TAG, "Root folder ID: " + mAbout.getRootFolderId());
+        }
+        return mAbout;
+    }
+
+    /**
+     * Find the keyrings folder in the root folder of the account. The result is
+     * kept for the rest of the session.
+     *
+     * @param knownFolderId The persisted ID of the keyrings folder, trusted if
+     *                      it still is a folder out of the trash. Null if unknown.
+     * @return The ID of the keyrings folder, null if there is none
+     * @throws IOException
+     */
+    synchronized String findKeyringsFolder(String knownFolderId) throws IOException {
+        if (!mFolderResolved) {
+            if (knownFolderId != null && isFolder(knownFolderId)) {
+                mFolderId = knownFolderId;
+            } else {
+                // Search by name
+                Drive.Files.List request = mService.files().list().setQ("'" + getAbout().getRootFolderId() + "' in parents " +
+                        "and mimeType='" + MIME_FOLDER + "' " +
+                        "and trashed=false " +
+                        "and title='" + mFolderName + "'").setFields(FOLDER_LIST_FIELDS);
+                FileList files = RequestGate.execute(request);
+                mFolderId = files.getItems().isEmpty() ? null : files.getItems().get(0).getId();
+            }
+            mFolderResolved = true;
+        }
+        return mFolderId;
+    }
+
+    /**
+     * Record the keyrings folder created during this session.
+     *
+     * @param folderId The ID of the new keyrings folder
+     */
+    synchronized void setKeyringsFolder(String folderId) {
+        mFolderId = folderId;
+        mFolderResolved = true;
+    }
+
+    /**
+     * Forget the keyrings folder, gone during this session, so that the next
+     * lookup searches it by name again.
+     */
+    synchronized void forgetKeyringsFolder() {
+        mFolderId = null;
+        mFolderResolved = false;
+    }
+
+    /**
+     * Check whether a Drive file still is a folder out of the trash.
+     *
+     * @param fileId The file ID
+     * @return True, if the file is a folder that isn't trashed
+     * @throws IOException
+     */
+    private boolean isFolder(String fileId) throws IOException {
+        try {
+            File folder = RequestGate.execute(mService.files().get(fileId).setFields(FOLDER_FIELDS));
+            return MIME_FOLDER.equals(folder.getMimeType()) && (folder.getLabels() == null || !Boolean.TRUE.equals(folder.getLabels().getTrashed()));
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import java.util.concurrent.*;
+
+/**
+ * Bounded pool of worker threads running content transfers in parallel.
+ * <p/>
+ * At most {@code maxTransfers} transfers run at once, the others wait for a
+ * worker. Results are handed back as {@link Future}s, so that the caller can
+ * commit them in submission order whatever order the transfers end in.
+ * <p/>
+ * The pool doesn't bound the transfers per host: the requests of all the pools
+ * already go through the {@link RequestGate}, which bounds them process-wide.
+ */
+class TransferPool {
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * Instantiate a new TransferPool.
+     *
+     * @param maxTransfers Maximum number of transfers running at once.
+     */
+    TransferPool(int maxTransfers) {
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, maxTransfers));
+    }
+
+    /**
+     * Queue a transfer.
+     *
+     * @param transfer The transfer
+     * @return The pending result of the transfer
+     */
+    <T> Future<T> submit(Callable<T> transfer) {
+        return mExecutor.submit(transfer);
+    }
+
+    /**
+     * Stop the worker threads once the queued transfers are done.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
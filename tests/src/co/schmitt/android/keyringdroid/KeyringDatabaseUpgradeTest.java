@@ -0,0 +1,175 @@
+package co.schmitt.android.keyringdroid;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Upgrades a database of the first version, as shipped before the migrations,
+ * through the provider's {@link KeyringProvider.DatabaseHelper}. Checks that
+ * the keyrings are kept, and that the lookups of the provider use the indexes
+ * the migrations create.
+ */
+public class KeyringDatabaseUpgradeTest extends ProviderTestCase2<KeyringProvider> {
+
+    private static final String ACCOUNT = "upgrade@example.com";
+    private static final String OTHER_ACCOUNT = "other@example.com";
+
+    /**
+     * The schema of the first version
+     */
+    private static final String CREATE_V1 = "CREATE TABLE keyrings (_id INTEGER PRIMARY KEY,title TEXT,keyring TEXT,created INTEGER,modified INTEGER,fileId TEXT,account TEXT,deleted BOOL DEFAULT FALSE);";
+
+    private SQLiteDatabase mDb;
+
+    public KeyringDatabaseUpgradeTest() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The provider only opens its database on first use, so it finds the
+        // first version and upgrades it.
+        Context context = getMockContext();
+        context.deleteDatabase(KeyringProvider.DATABASE_NAME);
+        SQLiteDatabase v1 = context.openOrCreateDatabase(KeyringProvider.DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            v1.execSQL(CREATE_V1);
+            insertV1(v1, 1, ACCOUNT, "a.keyring", 1000, "file-a", false);
+            // The same Drive file tracked twice, only the latest row is kept
+            insertV1(v1, 2, ACCOUNT, "b-old.keyring", 2000, "file-b", false);
+            insertV1(v1, 3, ACCOUNT, "b.keyring", 3000, "file-b", false);
+            // Never uploaded
+            insertV1(v1, 4, ACCOUNT, "c.keyring", 4000, null, false);
+            insertV1(v1, 5, OTHER_ACCOUNT, "d.keyring", 5000, "file-d", true);
+            // The latest row is kept even if it has been inserted first
+            insertV1(v1, 6, ACCOUNT, "e.keyring", 7000, "file-e", false);
+            insertV1(v1, 7, ACCOUNT, "e-old.keyring", 6000, "file-e", false);
+            // The latest inserted row wins a tie
+            insertV1(v1, 8, ACCOUNT, "f-old.keyring", 8000, "file-f", false);
+            insertV1(v1, 9, ACCOUNT, "f.keyring", 8000, "file-f", false);
+            v1.setVersion(1);
+        } finally {
+            v1.close();
+        }
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    private static void insertV1(SQLiteDatabase db, long id, String account, String filename, long modified, String fileId, boolean deleted) {
+        ContentValues values = new ContentValues();
+        values.put("_id", id);
+        values.put("title", filename);
+        values.put("keyring", filename);
+        values.put("created", modified);
+        values.put("modified", modified);
+        values.put("fileId", fileId);
+        values.put("account", account);
+        values.put("deleted", deleted);
+        db.insertOrThrow("keyrings", null, values);
+    }
+
+    @SmallTest
+    public void testUpgradeReachesCurrentVersion() {
+        assertEquals(KeyringProvider.DATABASE_VERSION, mDb.getVersion());
+    }
+
+    @SmallTest
+    public void testUpgradeKeepsKeyrings() {
+        Cursor c = mDb.query(KeyringVault.Keyrings.TABLE_NAME, new String[]{KeyringVault.Keyrings._ID}, null, null, null, null, KeyringVault.Keyrings._ID);
+        try {
+            long[] expected = {1, 3, 4, 5, 6, 9};
+            assertEquals(expected.length, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                assertEquals(expected[i], c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @SmallTest
+    public void testUpgradeComputesSyncState() {
+        Cursor c = mDb.query(KeyringVault.SyncState.TABLE_NAME, new String[]{KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS, KeyringVault.SyncState.COLUMN_NAME_DELETED}, KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + " = ?", new String[]{ACCOUNT}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+            assertEquals(0, c.getInt(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    @SmallTest
+    public void testSyncStateOnlyFollowsVisibleColumns() {
+        long lastChange = getSyncState(KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE);
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_OFFSET, 1024);
+        mDb.update(KeyringVault.Keyrings.TABLE_NAME, values, KeyringVault.Keyrings._ID + " = 4", null);
+        assertEquals(lastChange, getSyncState(KeyringVault.SyncState.COLUMN_NAME_LAST_CHANGE));
+
+        values = new ContentValues();
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, "file-c");
+        mDb.update(KeyringVault.Keyrings.TABLE_NAME, values, KeyringVault.Keyrings._ID + " = 4", null);
+        assertEquals(0, getSyncState(KeyringVault.SyncState.COLUMN_NAME_PENDING_UPLOADS));
+    }
+
+    private long getSyncState(String column) {
+        Cursor c = mDb.query(KeyringVault.SyncState.TABLE_NAME, new String[]{column}, KeyringVault.SyncState.COLUMN_NAME_ACCOUNT + " = ?", new String[]{ACCOUNT}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    @SmallTest
+    public void testFileIdLookupThroughProvider() {
+        Cursor c = getMockContentResolver().query(KeyringUri.getFileUri(ACCOUNT, "file-b"), new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_FILENAME}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(3, c.getLong(0));
+            assertEquals("b.keyring", c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    @SmallTest
+    public void testFileIdLookupUsesIndex() {
+        String plan = explain("SELECT * FROM " + KeyringVault.Keyrings.TABLE_NAME + " WHERE " + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = ? AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " = ?", ACCOUNT, "file-b");
+        assertTrue(plan, plan.contains(KeyringVault.Keyrings.INDEX_ACCOUNT_FILE_ID));
+    }
+
+    @SmallTest
+    public void testSortedListUsesIndex() {
+        String plan = explain("SELECT * FROM " + KeyringVault.Keyrings.TABLE_NAME + " WHERE " + KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = ? ORDER BY " + KeyringVault.Keyrings.DEFAULT_SORT_ORDER, ACCOUNT);
+        assertTrue(plan, plan.contains(KeyringVault.Keyrings.INDEX_ACCOUNT_MODIFIED));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * Retrieve the query plan of a statement.
+     *
+     * @param sql  The statement
+     * @param args The arguments of the statement
+     * @return The details of the steps of the plan, one per line
+     */
+    private String explain(String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package co.schmitt.android.keyringdroid;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Benchmarks the lookups of a keyring by Drive File ID, in lookups per second.
+ * <p/>
+ * The lookups are run before and after binding the URI filters as arguments:
+ * with the account and file ID quoted into the SQL text, so that every lookup
+ * compiles a new statement, then with the constant selection of the provider,
+ * served by the compiled-statement cache. The lookups through the provider URI
+ * are measured as well. The results are logged under the {@value #TAG} tag.
+ */
+public class KeyringLookupBenchmark extends ProviderTestCase2<KeyringProvider> {
+    private static final String TAG = "KeyringLookupBenchmark";
+
+    private static final String ACCOUNT = "lookup@example.com";
+    private static final int KEYRINGS = 1000;
+    private static final int LOOKUPS = 5000;
+
+    private static final String[] PROJECTION = new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_TITLE, KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE};
+
+    // The selection of the FILE_ID pattern
+    private static final String SELECTION_FILE_ID = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = ? AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " = ?";
+
+    private SQLiteDatabase mDb;
+    private Random mRandom;
+
+    public KeyringLookupBenchmark() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom = new Random(42);
+        // Start from an empty database, whatever the previous tests left
+        getMockContext().deleteDatabase(KeyringProvider.DATABASE_NAME);
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < KEYRINGS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, "keyring-" + i);
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_FILENAME, "keyring-" + i + ".keyring");
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, i);
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, "file-" + i);
+                values.put(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, ACCOUNT);
+                mDb.insertOrThrow(KeyringVault.Keyrings.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @MediumTest
+    public void testLookupsByFileId() {
+        // Warm up the statement cache and the pages of the database
+        lookUpQuoted(100);
+        lookUpBound(100);
+
+        long quoted = lookUpQuoted(LOOKUPS);
+        long bound = lookUpBound(LOOKUPS);
+        long provider = lookUpProvider(LOOKUPS);
+        Log.i(TAG, "Lookups by file ID among " + KEYRINGS + " keyrings: " + quoted + "/s quoted (before), "
+                + bound + "/s bound (after), " + provider + "/s through the provider");
+    }
+
+    /**
+     * Look up keyrings with the account and file ID quoted into the SQL text.
+     *
+     * @param lookups The number of lookups
+     * @return The lookups per second
+     */
+    private long lookUpQuoted(int lookups) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < lookups; i++) {
+            String selection = KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT + " = '" + ACCOUNT + "' AND " + KeyringVault.Keyrings.COLUMN_NAME_FILE_ID + " = '" + nextFileId() + "'";
+            assertFound(mDb.query(KeyringVault.Keyrings.TABLE_NAME, PROJECTION, selection, null, null, null, null));
+        }
+        return perSecond(lookups, start);
+    }
+
+    /**
+     * Look up keyrings with the account and file ID bound as arguments.
+     *
+     * @param lookups The number of lookups
+     * @return The lookups per second
+     */
+    private long lookUpBound(int lookups) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < lookups; i++) {
+            assertFound(mDb.query(KeyringVault.Keyrings.TABLE_NAME, PROJECTION, SELECTION_FILE_ID, new String[]{ACCOUNT, nextFileId()}, null, null, null));
+        }
+        return perSecond(lookups, start);
+    }
+
+    /**
+     * Look up keyrings through their file URI.
+     *
+     * @param lookups The number of lookups
+     * @return The lookups per second
+     */
+    private long lookUpProvider(int lookups) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < lookups; i++) {
+            assertFound(getMockContentResolver().query(KeyringUri.getFileUri(ACCOUNT, nextFileId()), PROJECTION, null, null, null));
+        }
+        return perSecond(lookups, start);
+    }
+
+    private String nextFileId() {
+        return "file-" + mRandom.nextInt(KEYRINGS);
+    }
+
+    private static void assertFound(Cursor c) {
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long perSecond(int lookups, long start) {
+        return lookups * 1000L / Math.max(1, SystemClock.elapsedRealtime() - start);
+    }
+}
@@ -0,0 +1,97 @@
+package co.schmitt.android.keyringdroid;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Looks up single keyrings through the provider, whether they are served from
+ * the metadata cache or from the database.
+ */
+public class KeyringLookupTest extends ProviderTestCase2<KeyringProvider> {
+
+    private static final String ACCOUNT = "lookup@example.com";
+    private static final long ID = 1;
+    private static final String FILE_ID = "file-a";
+    private static final String CONTENT_HASH = "0cc175b9c0f1b6a831c399e269772661";
+
+    public KeyringLookupTest() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getMockContext().deleteDatabase(KeyringProvider.DATABASE_NAME);
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings._ID, ID);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, "Bank");
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILENAME, "bank.keyring");
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, 1000);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, ACCOUNT);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID, FILE_ID);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH, CONTENT_HASH);
+        db.insertOrThrow(KeyringVault.Keyrings.TABLE_NAME, null, values);
+    }
+
+    @SmallTest
+    public void testCachedColumnsByFileId() {
+        String[] projection = new String[]{KeyringVault.Keyrings._ID, KeyringVault.Keyrings.COLUMN_NAME_TITLE};
+        // The first lookup loads the cache, the second one is served by it
+        for (int i = 0; i < 2; i++) {
+            Cursor c = query(KeyringUri.getFileUri(ACCOUNT, FILE_ID), projection);
+            try {
+                assertEquals(1, c.getCount());
+                assertTrue(c.moveToFirst());
+                assertEquals(ID, c.getLong(0));
+                assertEquals("Bank", c.getString(1));
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    @SmallTest
+    public void testAllColumnsWithoutProjection() {
+        // Load the cache first
+        query(KeyringUri.getKeyringUri(ACCOUNT, String.valueOf(ID)), new String[]{KeyringVault.Keyrings._ID}).close();
+
+        assertAllColumns(KeyringUri.getKeyringUri(ACCOUNT, String.valueOf(ID)));
+        assertAllColumns(KeyringUri.getFileUri(ACCOUNT, FILE_ID));
+    }
+
+    @SmallTest
+    public void testMissingKeyring() {
+        Cursor c = query(KeyringUri.getFileUri(ACCOUNT, "file-b"), new String[]{KeyringVault.Keyrings._ID});
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    private Cursor query(Uri uri, String[] projection) {
+        return getMockContentResolver().query(uri, projection, null, null, null);
+    }
+
+    /**
+     * Check that a lookup without projection returns the columns which aren't
+     * cached as well.
+     */
+    private void assertAllColumns(Uri uri) {
+        Cursor c = query(uri, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(ID, c.getLong(c.getColumnIndexOrThrow(KeyringVault.Keyrings._ID)));
+            assertEquals(FILE_ID, c.getString(c.getColumnIndexOrThrow(KeyringVault.Keyrings.COLUMN_NAME_FILE_ID)));
+            assertEquals(CONTENT_HASH, c.getString(c.getColumnIndexOrThrow(KeyringVault.Keyrings.COLUMN_NAME_CONTENT_HASH)));
+            assertTrue(c.getColumnIndex(KeyringVault.Keyrings.COLUMN_NAME_UPLOAD_SESSION) >= 0);
+        } finally {
+            c.close();
+        }
+    }
+}
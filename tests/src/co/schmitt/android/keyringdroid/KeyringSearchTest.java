@@ -0,0 +1,93 @@
+package co.schmitt.android.keyringdroid;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Searches keyrings through the search URI of the provider, and checks the
+ * ranking of the results.
+ */
+public class KeyringSearchTest extends ProviderTestCase2<KeyringProvider> {
+
+    private static final String ACCOUNT = "search@example.com";
+    private static final String OTHER_ACCOUNT = "other@example.com";
+
+    public KeyringSearchTest() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getMockContext().deleteDatabase(KeyringProvider.DATABASE_NAME);
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        // In the title and the file name
+        insert(db, 1, ACCOUNT, "Bank", "bank.keyring", 1000);
+        // In the title only
+        insert(db, 2, ACCOUNT, "Bank", "work.keyring", 2000);
+        // In the file name only, the most recent one
+        insert(db, 3, ACCOUNT, "Savings", "bank.keyring", 4000);
+        // In the title only, more recent than 2
+        insert(db, 4, ACCOUNT, "Banking", "home.keyring", 3000);
+        insert(db, 5, ACCOUNT, "Mail", "mail.keyring", 5000);
+        insert(db, 6, OTHER_ACCOUNT, "Bank", "bank.keyring", 6000);
+    }
+
+    private static void insert(SQLiteDatabase db, long id, String account, String title, String filename, long modified) {
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings._ID, id);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, title);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILENAME, filename);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE, modified);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT, account);
+        db.insertOrThrow(KeyringVault.Keyrings.TABLE_NAME, null, values);
+    }
+
+    @SmallTest
+    public void testResultsAreRankedByRelevanceThenRecency() {
+        assertResults("ban", 1, 4, 2, 3);
+    }
+
+    @SmallTest
+    public void testEveryWordMustMatch() {
+        assertResults("bank sav", 3);
+    }
+
+    @SmallTest
+    public void testQuerySyntaxIsIgnored() {
+        assertResults("(ban*\"", 1, 4, 2, 3);
+    }
+
+    @SmallTest
+    public void testEmptyQueryFindsNothing() {
+        assertResults("  -  ");
+    }
+
+    @SmallTest
+    public void testAllColumnsWithoutProjection() {
+        Cursor c = getMockContentResolver().query(KeyringUri.getSearchUri(ACCOUNT, "mail"), null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("mail.keyring", c.getString(c.getColumnIndexOrThrow(KeyringVault.Keyrings.COLUMN_NAME_FILENAME)));
+            assertEquals(ACCOUNT, c.getString(c.getColumnIndexOrThrow(KeyringVault.Keyrings.COLUMN_NAME_ACCOUNT)));
+            assertEquals(5000, c.getLong(c.getColumnIndexOrThrow(KeyringVault.Keyrings.COLUMN_NAME_MODIFICATION_DATE)));
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertResults(String query, long... expected) {
+        Cursor c = getMockContentResolver().query(KeyringUri.getSearchUri(ACCOUNT, query), new String[]{KeyringVault.Keyrings._ID}, null, null, null);
+        try {
+            assertEquals(expected.length, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                assertEquals(expected[i], c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import co.schmitt.android.keyringdroid.MD5;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the Drive v2 API, served through a
+ * {@link MockHttpTransport}. Install it with
+ * {@link DriveClient#setTransport(com.google.api.client.http.HttpTransport, String)}
+ * and {@link #TOKEN}.
+ * <p/>
+ * It serves the requests the sync adapter sends: {@code about.get},
+ * {@code files.list/get/insert/update/patch/delete}, {@code changes.list} with
+ * paging, resumable uploads of new and existing files, and content downloads.
+ * Like Drive, the change feed only holds the latest change of every file.
+ * <p/>
+ * Every request can be delayed by a fixed latency, and the requests and bytes
+ * transferred are counted, for the benchmarks.
+ */
+class FakeDrive extends MockHttpTransport {
+
+    /**
+     * The access token to install the fake with
+     */
+    static final String TOKEN = "fake-drive-token";
+
+    static final String ROOT_FOLDER_ID = "root";
+
+    private static final String DOWNLOAD_URL = "https://fake-drive.local/download/";
+    private static final String UPLOAD_SESSION_URL = "https://www.googleapis.com/upload/drive/v2/files?uploadType=resumable&upload_id=";
+    private static final String MIME_BINARY = "application/octet-stream";
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int DEFAULT_MAX_RESULTS = 100;
+
+    private static final Pattern IN_PARENTS = Pattern.compile("'([^']*)' in parents");
+    private static final Pattern FIELD_EQUALS = Pattern.compile("(\\w+)\\s*=\\s*'?([^']*)'?");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\*|(\\d+)-(\\d+))/(\\d+)");
+
+    private static final JsonFactory sJsonFactory = new GsonFactory();
+
+    // The files, by file ID, in creation order
+    private final Map<String, File> mFiles = new LinkedHashMap<String, File>();
+    private final Map<String, byte[]> mContents = new HashMap<String, byte[]>();
+    // The latest change of every file, by change ID
+    private final TreeMap<Long, Change> mChanges = new TreeMap<Long, Change>();
+    private final Map<String, Long> mLatestChanges = new HashMap<String, Long>();
+    private final Map<String, Upload> mUploads = new HashMap<String, Upload>();
+    private long mLargestChangeId;
+    private long mClock = System.currentTimeMillis();
+    private int mNextId;
+
+    private volatile long mLatencyMillis;
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private final AtomicLong mBytesUploaded = new AtomicLong();
+
+    /**
+     * A pending resumable upload
+     */
+    private static class Upload {
+        String fileId;
+        File metadata;
+        String mimeType;
+        long length;
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Delay every request, to stand for the round trip to Drive.
+     *
+     * @param latencyMillis The delay, in milliseconds
+     */
+    void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    long getRequestCount() {
+        return mRequests.get();
+    }
+
+    long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    long getBytesUploaded() {
+        return mBytesUploaded.get();
+    }
+
+    void resetCounters() {
+        mRequests.set(0);
+        mBytesDownloaded.set(0);
+        mBytesUploaded.set(0);
+    }
+
+    /*
+     * Fixtures
+     */
+
+    /**
+     * Create a folder.
+     *
+     * @param parentId The ID of the parent folder
+     * @param title    The title of the folder
+     * @return The ID of the folder
+     */
+    synchronized String addFolder(String parentId, String title) {
+        File folder = new File().setTitle(title).setMimeType(SyncSession.MIME_FOLDER)
+                .setParents(Arrays.asList(new ParentReference().setId(parentId)));
+        return create(folder, null).getId();
+    }
+
+    /**
+     * Create a binary file.
+     *
+     * @param parentId The ID of the parent folder
+     * @param title    The title of the file
+     * @param content  The content of the file
+     * @return The ID of the file
+     */
+    synchronized String addFile(String parentId, String title, byte[] content) {
+        File file = new File().setTitle(title).setMimeType(MIME_BINARY)
+                .setParents(Arrays.asList(new ParentReference().setId(parentId)));
+        return create(file, content).getId();
+    }
+
+    /**
+     * Create keyring files of random content.
+     *
+     * @param parentId The ID of the parent folder
+     * @param count    The number of keyrings
+     * @param size     The size of every keyring, in bytes
+     * @param random   The source of the contents
+     * @return The IDs of the files
+     */
+    synchronized List<String> addKeyrings(String parentId, int count, int size, Random random) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            ids.add(addFile(parentId, "generated-" + mNextId + ".keyring", content));
+        }
+        return ids;
+    }
+
+    /**
+     * Replace the content of a file, as another client would.
+     *
+     * @param fileId  The file ID
+     * @param content The new content
+     */
+    synchronized void setContent(String fileId, byte[] content) {
+        update(mFiles.get(fileId), content);
+    }
+
+    /**
+     * Move a file to the trash, as another client would.
+     *
+     * @param fileId The file ID
+     */
+    synchronized void trash(String fileId) {
+        File file = mFiles.get(fileId);
+        file.getLabels().setTrashed(true);
+        update(file, null);
+    }
+
+    /**
+     * Delete a file, as another client would.
+     *
+     * @param fileId The file ID
+     */
+    synchronized void delete(String fileId) {
+        mFiles.remove(fileId);
+        mContents.remove(fileId);
+        recordChange(fileId, null);
+    }
+
+    synchronized File getFile(String fileId) {
+        return mFiles.get(fileId);
+    }
+
+    synchronized byte[] getContent(String fileId) {
+        return mContents.get(fileId);
+    }
+
+    /**
+     * Retrieve the files of a folder.
+     *
+     * @param parentId The ID of the folder
+     * @return The files of the folder, trashed ones included
+     */
+    synchronized List<File> getChildren(String parentId) {
+        List<File> children = new ArrayList<File>();
+        for (File file : mFiles.values()) {
+            if (isInParent(file, parentId)) {
+                children.add(file);
+            }
+        }
+        return children;
+    }
+
+    /*
+     * Transport
+     */
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new FakeRequest(method, url);
+    }
+
+    /**
+     * A request to the fake, answered once sent.
+     */
+    private class FakeRequest extends MockLowLevelHttpRequest {
+        private final String mMethod;
+
+        FakeRequest(String method, String url) {
+            super(url);
+            mMethod = method;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            mRequests.incrementAndGet();
+            if (mLatencyMillis > 0) {
+                try {
+                    Thread.sleep(mLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            String method = getHeader(this, "X-HTTP-Method-Override");
+            byte[] body = readContent(this);
+            synchronized (FakeDrive.this) {
+                return handle(method != null ? method : mMethod, new GenericUrl(getUrl()), body, this);
+            }
+        }
+    }
+
+    private LowLevelHttpResponse handle(String method, GenericUrl url, byte[] body, MockLowLevelHttpRequest request) throws IOException {
+        List<String> path = new ArrayList<String>(url.getPathParts());
+        // The path parts start with the empty part before the first slash
+        path.remove(0);
+        String resource = path.size() > 2 ? path.get(2) : "";
+        String id = path.size() > 3 ? path.get(3) : null;
+
+        if ("fake-drive.local".equals(url.getHost()) && path.size() == 2 && "download".equals(path.get(0))) {
+            return download(path.get(1));
+        }
+        if ("upload".equals(path.get(0))) {
+            id = path.size() > 4 ? path.get(4) : null;
+            if (url.getFirst("upload_id") != null) {
+                return uploadChunk((String) url.getFirst("upload_id"), body, getHeader(request, "Content-Range"));
+            }
+            return startUpload(id, body, getHeader(request, "X-Upload-Content-Type"), getHeader(request, "X-Upload-Content-Length"));
+        }
+        if (path.size() < 3 || !"drive".equals(path.get(0))) {
+            return error(404, "notFound");
+        }
+        if ("about".equals(resource) && "GET".equals(method)) {
+            return json(200, new About().setRootFolderId(ROOT_FOLDER_ID).setLargestChangeId(mLargestChangeId));
+        }
+        if ("changes".equals(resource) && "GET".equals(method)) {
+            return listChanges(url);
+        }
+        if (!"files".equals(resource)) {
+            return error(404, "notFound");
+        }
+        if (id == null) {
+            if ("GET".equals(method)) {
+                return listFiles(url);
+            }
+            if ("POST".equals(method)) {
+                return json(200, create(parse(body), null));
+            }
+            return error(405, "methodNotAllowed");
+        }
+        File file = mFiles.get(id);
+        if (file == null) {
+            return error(404, "notFound");
+        }
+        if ("GET".equals(method)) {
+            return json(200, file);
+        }
+        if ("PUT".equals(method) || "PATCH".equals(method)) {
+            File metadata = parse(body);
+            if (metadata.getTitle() != null) {
+                file.setTitle(metadata.getTitle());
+            }
+            if (metadata.getLabels() != null && metadata.getLabels().getTrashed() != null) {
+                file.getLabels().setTrashed(metadata.getLabels().getTrashed());
+            }
+            return json(200, update(file, null));
+        }
+        if ("DELETE".equals(method)) {
+            delete(id);
+            return new MockLowLevelHttpResponse().setStatusCode(204);
+        }
+        return error(405, "methodNotAllowed");
+    }
+
+    private LowLevelHttpResponse listFiles(GenericUrl url) throws IOException {
+        List<File> matches = new ArrayList<File>();
+        String q = (String) url.getFirst("q");
+        for (File file : mFiles.values()) {
+            if (q == null || matches(file, q)) {
+                matches.add(file);
+            }
+        }
+        int start = url.getFirst("pageToken") != null ? Integer.parseInt((String) url.getFirst("pageToken")) : 0;
+        int maxResults = url.getFirst("maxResults") != null ? Integer.parseInt((String) url.getFirst("maxResults")) : DEFAULT_MAX_RESULTS;
+        int end = Math.min(matches.size(), start + maxResults);
+        FileList list = new FileList().setItems(new ArrayList<File>(matches.subList(start, end)));
+        if (end < matches.size()) {
+            list.setNextPageToken(String.valueOf(end));
+        }
+        return json(200, list);
+    }
+
+    private LowLevelHttpResponse listChanges(GenericUrl url) throws IOException {
+        long start = url.getFirst("pageToken") != null ? Long.parseLong((String) url.getFirst("pageToken"))
+                : url.getFirst("startChangeId") != null ? Long.parseLong((String) url.getFirst("startChangeId")) : 1;
+        int maxResults = url.getFirst("maxResults") != null ? Integer.parseInt((String) url.getFirst("maxResults")) : DEFAULT_MAX_RESULTS;
+        List<Change> items = new ArrayList<Change>();
+        ChangeList list = new ChangeList().setLargestChangeId(mLargestChangeId).setItems(items);
+        for (Change change : mChanges.tailMap(start).values()) {
+            if (items.size() == maxResults) {
+                list.setNextPageToken(String.valueOf(change.getId()));
+                break;
+            }
+            items.add(change);
+        }
+        return json(200, list);
+    }
+
+    private LowLevelHttpResponse download(String fileId) {
+        byte[] content = mContents.get(fileId);
+        if (content == null) {
+            return new MockLowLevelHttpResponse().setStatusCode(404);
+        }
+        mBytesDownloaded.addAndGet(content.length);
+        return new MockLowLevelHttpResponse().setStatusCode(200).setContentType(MIME_BINARY)
+                .setContentLength(content.length).setContent(new ByteArrayInputStream(content));
+    }
+
+    private LowLevelHttpResponse startUpload(String fileId, byte[] body, String mimeType, String length) throws IOException {
+        if (fileId != null && !mFiles.containsKey(fileId)) {
+            return error(404, "notFound");
+        }
+        Upload upload = new Upload();
+        upload.fileId = fileId;
+        upload.metadata = parse(body);
+        upload.mimeType = mimeType;
+        upload.length = length != null ? Long.parseLong(length) : -1;
+        String uploadId = String.valueOf(mUploads.size() + 1);
+        mUploads.put(uploadId, upload);
+        return new MockLowLevelHttpResponse().setStatusCode(200).addHeader("Location", UPLOAD_SESSION_URL + uploadId);
+    }
+
+    private LowLevelHttpResponse uploadChunk(String uploadId, byte[] body, String contentRange) throws IOException {
+        Upload upload = mUploads.get(uploadId);
+        Matcher range = contentRange != null ? CONTENT_RANGE.matcher(contentRange) : null;
+        if (upload == null) {
+            return error(404, "notFound");
+        }
+        if (range == null || !range.matches()) {
+            return error(400, "badContentRange");
+        }
+        long total = Long.parseLong(range.group(4));
+        if (upload.length >= 0 && total != upload.length) {
+            return error(400, "badContentRange");
+        }
+        upload.length = total;
+        if (range.group(2) != null) {
+            long offset = Long.parseLong(range.group(2));
+            // Drive only accepts the chunk following the received content
+            if (offset == upload.content.size()) {
+                upload.content.write(body, 0, body.length);
+                mBytesUploaded.addAndGet(body.length);
+            }
+        }
+        if (upload.content.size() < total) {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(STATUS_RESUME_INCOMPLETE);
+            if (upload.content.size() > 0) {
+                response.addHeader("Range", "bytes=0-" + (upload.content.size() - 1));
+            }
+            return response;
+        }
+        File file;
+        if (upload.fileId == null) {
+            File metadata = upload.metadata;
+            if (metadata.getMimeType() == null) {
+                metadata.setMimeType(upload.mimeType != null ? upload.mimeType : MIME_BINARY);
+            }
+            upload.fileId = create(metadata, upload.content.toByteArray()).getId();
+            file = mFiles.get(upload.fileId);
+        } else {
+            file = mFiles.get(upload.fileId);
+            if (file == null) {
+                return error(404, "notFound");
+            }
+            if (upload.metadata.getTitle() != null) {
+                file.setTitle(upload.metadata.getTitle());
+            }
+            update(file, upload.content.toByteArray());
+        }
+        return json(200, file);
+    }
+
+    /*
+     * State
+     */
+
+    private File create(File file, byte[] content) {
+        String id = "file" + (++mNextId);
+        DateTime now = tick();
+        file.setId(id).setCreatedDate(now).setModifiedDate(now).setLabels(new File.Labels().setTrashed(false));
+        if (file.getMimeType() == null) {
+            file.setMimeType(MIME_BINARY);
+        }
+        if (file.getParents() == null || file.getParents().isEmpty()) {
+            file.setParents(Arrays.asList(new ParentReference().setId(ROOT_FOLDER_ID)));
+        }
+        mFiles.put(id, file);
+        setContent(file, content);
+        recordChange(id, file);
+        return file;
+    }
+
+    private File update(File file, byte[] content) {
+        file.setModifiedDate(tick());
+        if (content != null) {
+            setContent(file, content);
+        }
+        recordChange(file.getId(), file);
+        return file;
+    }
+
+    private void setContent(File file, byte[] content) {
+        if (content == null) {
+            return;
+        }
+        mContents.put(file.getId(), content);
+        file.setMd5Checksum(md5(content)).setFileSize((long) content.length).setDownloadUrl(DOWNLOAD_URL + file.getId());
+    }
+
+    private void recordChange(String fileId, File file) {
+        Long previous = mLatestChanges.get(fileId);
+        if (previous != null) {
+            mChanges.remove(previous);
+        }
+        long changeId = ++mLargestChangeId;
+        mChanges.put(changeId, new Change().setId(changeId).setFileId(fileId).setDeleted(file == null).setFile(file));
+        mLatestChanges.put(fileId, changeId);
+    }
+
+    // Strictly increasing modification dates, whatever the clock resolution
+    private DateTime tick() {
+        mClock = Math.max(mClock + 1, System.currentTimeMillis());
+        return new DateTime(mClock);
+    }
+
+    /**
+     * Evaluate the conjunction of terms the sync adapter sends as queries.
+     */
+    private boolean matches(File file, String q) {
+        for (String term : q.split(" and ")) {
+            term = term.trim();
+            Matcher inParents = IN_PARENTS.matcher(term);
+            Matcher equals = FIELD_EQUALS.matcher(term);
+            if (inParents.matches()) {
+                if (!isInParent(file, inParents.group(1))) {
+                    return false;
+                }
+            } else if (equals.matches()) {
+                String field = equals.group(1);
+                String value = equals.group(2);
+                if ("trashed".equals(field)) {
+                    if (Boolean.parseBoolean(value) != Boolean.TRUE.equals(file.getLabels().getTrashed())) {
+                        return false;
+                    }
+                } else if ("mimeType".equals(field)) {
+                    if (!value.equals(file.getMimeType())) {
+                        return false;
+                    }
+                } else if ("title".equals(field)) {
+                    if (!value.equals(file.getTitle())) {
+                        return false;
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unsupported query term " + term);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported query term " + term);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInParent(File file, String parentId) {
+        if (file.getParents() != null) {
+            for (ParentReference parent : file.getParents()) {
+                if (parentId.equals(parent.getId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Helpers
+     */
+
+    private static File parse(byte[] body) throws IOException {
+        if (body.length == 0) {
+            return new File();
+        }
+        return sJsonFactory.fromString(new String(body, "UTF-8"), File.class);
+    }
+
+    private static MockLowLevelHttpResponse json(int status, Object content) throws IOException {
+        return new MockLowLevelHttpResponse().setStatusCode(status).setContentType("application/json; charset=UTF-8")
+                .setContent(sJsonFactory.toString(content));
+    }
+
+    private static MockLowLevelHttpResponse error(int status, String reason) {
+        return new MockLowLevelHttpResponse().setStatusCode(status).setContentType("application/json; charset=UTF-8")
+                .setContent("{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\"}],\"code\":" + status + ",\"message\":\"" + reason + "\"}}");
+    }
+
+    private static String getHeader(MockLowLevelHttpRequest request, String name) {
+        for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readContent(LowLevelHttpRequest request) throws IOException {
+        if (request.getStreamingContent() == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        byte[] content = out.toByteArray();
+        if ("gzip".equals(request.getContentEncoding())) {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(content));
+            out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            content = out.toByteArray();
+        }
+        return content;
+    }
+
+    static String md5(byte[] content) {
+        try {
+            return MD5.toHexString(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
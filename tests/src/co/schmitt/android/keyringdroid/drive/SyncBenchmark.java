@@ -0,0 +1,201 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+import co.schmitt.android.keyringdroid.KeyringProvider;
+import co.schmitt.android.keyringdroid.KeyringUri;
+import co.schmitt.android.keyringdroid.KeyringVault;
+import co.schmitt.android.keyringdroid.R;
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.services.drive.model.File;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks the full and incremental syncs of generated accounts against a
+ * {@link FakeDrive}, from 10 to 10,000 keyrings.
+ * <p/>
+ * Every account is synced in full from scratch, then a tenth of its keyrings is
+ * changed on Drive, a hundredth deleted and as many added locally, and it is
+ * synced again incrementally. Both syncs are run for each of the
+ * {@link #LATENCIES_MILLIS}, and their wall time, requests and bytes
+ * transferred are logged under the {@value #TAG} tag.
+ * <p/>
+ * The syncs are paced by the {@link RequestGate} like against Drive, so the
+ * larger accounts take a while; run them with
+ * {@code adb shell am instrument -w -e size large ...}.
+ */
+public class SyncBenchmark extends ProviderTestCase2<KeyringProvider> {
+    private static final String TAG = "SyncBenchmark";
+
+    /**
+     * The latencies of the fake Drive to benchmark, in milliseconds
+     */
+    private static final long[] LATENCIES_MILLIS = {0, 100};
+
+    /**
+     * The size of the generated keyrings, in bytes
+     */
+    private static final int KEYRING_SIZE = 2048;
+
+    private FakeDrive mDrive;
+    private Random mRandom;
+    // The accounts synced by the test, whose local folders are deleted after it
+    private final List<Account> mAccounts = new ArrayList<Account>();
+
+    public SyncBenchmark() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDrive = new FakeDrive();
+        mRandom = new Random(42);
+        DriveClient.setTransport(mDrive, FakeDrive.TOKEN);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DriveClient.setTransport(AndroidHttp.newCompatibleTransport(), null);
+        for (Account account : mAccounts) {
+            deleteRecursively(new java.io.File(getContext().getFilesDir(), account.name));
+        }
+        mAccounts.clear();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testSync10() throws IOException {
+        benchmark(10);
+    }
+
+    @LargeTest
+    public void testSync100() throws IOException {
+        benchmark(100);
+    }
+
+    @LargeTest
+    public void testSync1000() throws IOException {
+        benchmark(1000);
+    }
+
+    @LargeTest
+    public void testSync10000() throws IOException {
+        benchmark(10000);
+    }
+
+    private void benchmark(int keyrings) throws IOException {
+        for (long latency : LATENCIES_MILLIS) {
+            benchmark(keyrings, latency);
+        }
+    }
+
+    /**
+     * Benchmark the syncs of a new account.
+     *
+     * @param keyrings      The number of keyrings of the account on Drive
+     * @param latencyMillis The latency of the fake Drive
+     */
+    private void benchmark(int keyrings, long latencyMillis) throws IOException {
+        Account account = new Account("bench" + SystemClock.elapsedRealtime() + "@example.com", "com.google");
+        mAccounts.add(account);
+        String folderId = mDrive.addFolder(FakeDrive.ROOT_FOLDER_ID, getContext().getString(R.string.keyring_folder));
+        List<String> fileIds = mDrive.addKeyrings(folderId, keyrings, KEYRING_SIZE, mRandom);
+        mDrive.setLatency(latencyMillis);
+        try {
+            sync(account, "full", keyrings, latencyMillis);
+            assertEquals(keyrings, countKeyrings(account));
+
+            int changed = Math.max(1, keyrings / 10);
+            int deleted = Math.max(1, keyrings / 100);
+            for (int i = 0; i < changed; i++) {
+                byte[] content = new byte[KEYRING_SIZE];
+                mRandom.nextBytes(content);
+                mDrive.setContent(fileIds.get(i), content);
+            }
+            for (int i = 0; i < deleted; i++) {
+                mDrive.delete(fileIds.get(keyrings - 1 - i));
+            }
+            for (int i = 0; i < deleted; i++) {
+                addLocalKeyring(account, "local-" + i + ".keyring");
+            }
+            sync(account, "incremental", keyrings, latencyMillis);
+            assertEquals(keyrings, countKeyrings(account));
+            int uploaded = 0;
+            for (File file : mDrive.getChildren(folderId)) {
+                if (file.getTitle().startsWith("local-")) {
+                    uploaded++;
+                }
+            }
+            assertEquals(deleted, uploaded);
+        } finally {
+            mDrive.setLatency(0);
+        }
+    }
+
+    private void sync(Account account, String kind, int keyrings, long latencyMillis) {
+        ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(KeyringVault.AUTHORITY);
+        try {
+            SyncResult syncResult = new SyncResult();
+            mDrive.resetCounters();
+            long start = SystemClock.elapsedRealtime();
+            new DriveSyncer(getContext(), provider, account).performSync(syncResult);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            assertFalse(syncResult.toString(), syncResult.hasError());
+            Log.i(TAG, kind + " sync of " + keyrings + " keyrings at " + latencyMillis + "ms latency: " + elapsed + "ms, "
+                    + mDrive.getRequestCount() + " requests, " + mDrive.getBytesDownloaded() + " bytes down, "
+                    + mDrive.getBytesUploaded() + " bytes up");
+        } finally {
+            provider.release();
+        }
+    }
+
+    private void addLocalKeyring(Account account, String filename) throws IOException {
+        java.io.File folder = new java.io.File(getContext().getFilesDir(), account.name);
+        folder.mkdirs();
+        byte[] content = new byte[KEYRING_SIZE];
+        mRandom.nextBytes(content);
+        FileOutputStream output = new FileOutputStream(new java.io.File(folder, filename));
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_TITLE, filename);
+        values.put(KeyringVault.Keyrings.COLUMN_NAME_FILENAME, filename);
+        getMockContentResolver().insert(KeyringUri.getKeyringsUri(account.name), values);
+    }
+
+    private static void deleteRecursively(java.io.File file) {
+        java.io.File[] children = file.listFiles();
+        if (children != null) {
+            for (java.io.File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private int countKeyrings(Account account) {
+        Cursor cursor = getMockContentResolver().query(KeyringUri.getKeyringsUri(account.name), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
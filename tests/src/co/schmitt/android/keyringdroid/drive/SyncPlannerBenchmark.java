@@ -0,0 +1,81 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+import com.google.api.services.drive.model.File;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Benchmarks the planning of sync steps alone, from 10 to 10,000 keyrings,
+ * without the network nor the provider.
+ * <p/>
+ * The snapshots stand for an incremental sync: a tenth of the Drive files are
+ * newer than their keyrings, a hundredth deleted on Drive, and as many keyrings
+ * never uploaded and Drive files never downloaded. Every size is planned
+ * {@link #RUNS} times, and the time per plan and the keyrings planned per second
+ * are logged under the {@value #TAG} tag.
+ */
+public class SyncPlannerBenchmark extends TestCase {
+    private static final String TAG = "SyncPlannerBenchmark";
+
+    private static final int[] SIZES = {10, 100, 1000, 10000};
+    private static final int RUNS = 20;
+
+    private static final String MD5_A = "0cc175b9c0f1b6a831c399e269772661";
+    private static final String MD5_B = "92eb5ffee6ae2fec3ad71c777531578f";
+
+    @MediumTest
+    public void testPlan() {
+        // Warm up the planner
+        plan(100, RUNS);
+        for (int size : SIZES) {
+            long elapsed = Math.max(1, plan(size, RUNS));
+            Log.i(TAG, "Plan of " + size + " keyrings: " + elapsed * 1000 / RUNS + "us, "
+                    + (long) size * RUNS * 1000 / elapsed + " keyrings/s");
+        }
+    }
+
+    /**
+     * Plan a generated step several times, and sort it in waves.
+     *
+     * @param size The number of keyrings of the step
+     * @param runs The number of times the step is planned
+     * @return The time taken, in milliseconds
+     */
+    private static long plan(int size, int runs) {
+        List<LocalKeyring> local = new ArrayList<LocalKeyring>();
+        Map<String, File> remote = new HashMap<String, File>();
+        int changed = Math.max(1, size / 10);
+        int deleted = Math.max(1, size / 100);
+        for (int i = 0; i < size; i++) {
+            String fileId = "file-" + i;
+            local.add(SyncPlannerTest.newLocal(i, fileId, 1000, false, MD5_A));
+            if (i < changed) {
+                remote.put(fileId, SyncPlannerTest.newRemote(fileId, fileId + ".keyring", 2000, MD5_B, false));
+            } else if (i < changed + deleted) {
+                remote.put(fileId, null);
+            } else {
+                remote.put(fileId, SyncPlannerTest.newRemote(fileId, fileId + ".keyring", 1000, MD5_A, false));
+            }
+        }
+        for (int i = 0; i < deleted; i++) {
+            local.add(SyncPlannerTest.newLocal(size + i, null, 1000, false, MD5_A));
+            String fileId = "new-file-" + i;
+            remote.put(fileId, SyncPlannerTest.newRemote(fileId, fileId + ".keyring", 1000, MD5_B, false));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int run = 0; run < runs; run++) {
+            List<SyncOperation> plan = SyncPlanner.plan(local, remote, null);
+            List<List<SyncOperation>> waves = SyncPlanner.getWaves(plan);
+            // The downloads, the deletions and the creation of the folder, then
+            // the uploads
+            assertEquals(changed + deleted + deleted + 1 + deleted, plan.size());
+            assertEquals(2, waves.size());
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
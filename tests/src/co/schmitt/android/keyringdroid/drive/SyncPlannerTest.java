@@ -0,0 +1,211 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Plans sync steps from snapshots built in memory, see {@link SyncPlanner}.
+ * Neither the provider nor Drive are involved.
+ */
+public class SyncPlannerTest extends TestCase {
+
+    private static final String FOLDER_ID = "folder";
+
+    private static final String MD5_A = "0cc175b9c0f1b6a831c399e269772661";
+    private static final String MD5_B = "92eb5ffee6ae2fec3ad71c777531578f";
+
+    @SmallTest
+    public void testLocalOnlyIsUploaded() {
+        LocalKeyring keyring = newLocal(1, null, 1000, false, MD5_A);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), new HashMap<String, File>(), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.UPLOAD, keyring, null);
+        assertTrue(plan.get(0).dependencies.isEmpty());
+    }
+
+    @SmallTest
+    public void testLocalOnlyDeletedIsDeletedLocally() {
+        LocalKeyring keyring = newLocal(1, null, 1000, true, MD5_A);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), new HashMap<String, File>(), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DELETE_LOCAL, keyring, null);
+    }
+
+    @SmallTest
+    public void testRemoteOnlyIsDownloaded() {
+        File driveFile = newRemote("file-a", "a.keyring", 1000, MD5_A, false);
+        Map<String, File> remote = new HashMap<String, File>();
+        remote.put(driveFile.getId(), driveFile);
+        remote.put("file-b", newRemote("file-b", "b.txt", 1000, MD5_B, false));
+        remote.put("file-c", newRemote("file-c", "c.keyring", 1000, MD5_B, true));
+        remote.put("file-d", null);
+        List<SyncOperation> plan = plan(Collections.<LocalKeyring>emptyList(), remote, FOLDER_ID);
+        // Neither other files, trashed keyrings nor deleted files are downloaded
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DOWNLOAD, null, driveFile);
+    }
+
+    @SmallTest
+    public void testKeyringOutsideTheStepIsUntouched() {
+        LocalKeyring keyring = newLocal(1, "file-a", 2000, false, MD5_A);
+        assertTrue(plan(Arrays.asList(keyring), new HashMap<String, File>(), FOLDER_ID).isEmpty());
+    }
+
+    @SmallTest
+    public void testDeletedOnDriveIsDeletedLocally() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, MD5_A);
+        Map<String, File> remote = new HashMap<String, File>();
+        remote.put("file-a", null);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), remote, FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DELETE_LOCAL, keyring, null);
+    }
+
+    @SmallTest
+    public void testTrashedOnDriveIsPurged() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 2000, MD5_A, true);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.PURGE_REMOTE, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testDeletedLocallyIsDeletedOnDrive() {
+        LocalKeyring keyring = newLocal(1, "file-a", 2000, true, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 1000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DELETE_REMOTE, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testNewerLocalContentReplacesDriveFile() {
+        LocalKeyring keyring = newLocal(1, "file-a", 2000, false, MD5_B);
+        File driveFile = newRemote("file-a", "a.keyring", 1000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.REPLACE_REMOTE, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testNewerLocalMetadataUpdatesDriveFile() {
+        LocalKeyring keyring = newLocal(1, "file-a", 2000, false, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 1000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.UPDATE_REMOTE, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testNewerDriveContentIsDownloaded() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 2000, MD5_B, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DOWNLOAD, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testNewerDriveMetadataUpdatesKeyring() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 2000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.UPDATE_LOCAL, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testUnreadableKeyringIsDownloaded() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, null);
+        File driveFile = newRemote("file-a", "a.keyring", 2000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID);
+        assertEquals(1, plan.size());
+        assertOperation(plan.get(0), SyncOperation.Type.DOWNLOAD, keyring, driveFile);
+    }
+
+    @SmallTest
+    public void testUpToDateKeyringIsSkipped() {
+        LocalKeyring keyring = newLocal(1, "file-a", 1000, false, MD5_A);
+        File driveFile = newRemote("file-a", "a.keyring", 1000, MD5_B, false);
+        assertTrue(plan(Arrays.asList(keyring), asRemote(driveFile), FOLDER_ID).isEmpty());
+    }
+
+    @SmallTest
+    public void testMissingFolderIsCreatedBeforeUploads() {
+        LocalKeyring first = newLocal(1, null, 1000, false, MD5_A);
+        LocalKeyring second = newLocal(2, null, 2000, false, MD5_B);
+        List<SyncOperation> plan = plan(Arrays.asList(first, second), new HashMap<String, File>(), null);
+        assertEquals(3, plan.size());
+        SyncOperation createFolder = plan.get(0);
+        assertOperation(createFolder, SyncOperation.Type.CREATE_FOLDER, null, null);
+        assertOperation(plan.get(1), SyncOperation.Type.UPLOAD, first, null);
+        assertOperation(plan.get(2), SyncOperation.Type.UPLOAD, second, null);
+        assertEquals(Arrays.asList(createFolder), plan.get(1).dependencies);
+        assertEquals(Arrays.asList(createFolder), plan.get(2).dependencies);
+    }
+
+    @SmallTest
+    public void testWavesRunDependenciesFirst() {
+        LocalKeyring upload = newLocal(1, null, 1000, false, MD5_A);
+        LocalKeyring update = newLocal(2, "file-b", 1000, false, MD5_A);
+        LocalKeyring otherUpload = newLocal(3, null, 1000, false, MD5_B);
+        File updated = newRemote("file-b", "b.keyring", 2000, MD5_A, false);
+        List<SyncOperation> plan = plan(Arrays.asList(upload, update, otherUpload), asRemote(updated), null);
+        assertEquals(4, plan.size());
+
+        List<List<SyncOperation>> waves = SyncPlanner.getWaves(plan);
+        assertEquals(2, waves.size());
+        // The operations of a wave keep their order in the plan
+        assertEquals(Arrays.asList(plan.get(0), plan.get(2)), waves.get(0));
+        assertOperation(waves.get(0).get(0), SyncOperation.Type.CREATE_FOLDER, null, null);
+        assertOperation(waves.get(0).get(1), SyncOperation.Type.UPDATE_LOCAL, update, updated);
+        assertEquals(Arrays.asList(plan.get(1), plan.get(3)), waves.get(1));
+        assertOperation(waves.get(1).get(0), SyncOperation.Type.UPLOAD, upload, null);
+        assertOperation(waves.get(1).get(1), SyncOperation.Type.UPLOAD, otherUpload, null);
+    }
+
+    @SmallTest
+    public void testWavesOfIndependentOperations() {
+        LocalKeyring upload = newLocal(1, null, 1000, false, MD5_A);
+        File download = newRemote("file-b", "b.keyring", 1000, MD5_B, false);
+        List<SyncOperation> plan = plan(Arrays.asList(upload), asRemote(download), FOLDER_ID);
+        List<List<SyncOperation>> waves = SyncPlanner.getWaves(plan);
+        assertEquals(1, waves.size());
+        assertEquals(plan, waves.get(0));
+    }
+
+    /*
+     * Helpers
+     */
+
+    private static List<SyncOperation> plan(List<LocalKeyring> local, Map<String, File> remote, String folderId) {
+        return SyncPlanner.plan(local, remote, folderId);
+    }
+
+    static LocalKeyring newLocal(long id, String fileId, long modified, boolean deleted, String md5) {
+        String filename = "keyring-" + id + ".keyring";
+        return new LocalKeyring(id, filename, filename, modified, fileId, deleted, null, md5, false);
+    }
+
+    static File newRemote(String fileId, String title, long modified, String md5, boolean trashed) {
+        return new File().setId(fileId).setTitle(title).setModifiedDate(new DateTime(modified)).setMd5Checksum(md5)
+                .setLabels(new File.Labels().setTrashed(trashed));
+    }
+
+    private static Map<String, File> asRemote(File driveFile) {
+        Map<String, File> remote = new HashMap<String, File>();
+        remote.put(driveFile.getId(), driveFile);
+        return remote;
+    }
+
+    private static void assertOperation(SyncOperation operation, SyncOperation.Type type, LocalKeyring local, File remote) {
+        assertEquals(operation.toString(), type, operation.type);
+        assertSame(operation.toString(), local, operation.local);
+        assertSame(operation.toString(), remote, operation.remote);
+    }
+}
@@ -0,0 +1,99 @@
+package co.schmitt.android.keyringdroid.drive;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import co.schmitt.android.keyringdroid.KeyringProvider;
+import co.schmitt.android.keyringdroid.KeyringVault;
+import co.schmitt.android.keyringdroid.R;
+import com.google.api.client.extensions.android.http.AndroidHttp;
+
+import java.util.Random;
+
+/**
+ * Benchmarks the throughput of the transfer pool against a {@link FakeDrive},
+ * for several pool sizes.
+ * <p/>
+ * Each run downloads the same keyrings into a new account with a first sync,
+ * the fake Drive answering every request after {@link #LATENCY_MILLIS}. The
+ * downloads per second and bytes per second of every pool size are logged under
+ * the {@value #TAG} tag. They scale with the pool size until the
+ * {@link RequestGate} caps the requests in flight or their rate.
+ */
+public class TransferPoolBenchmark extends ProviderTestCase2<KeyringProvider> {
+    private static final String TAG = "TransferPoolBenchmark";
+
+    private static final int[] POOL_SIZES = {1, 2, 4, 8};
+    private static final long LATENCY_MILLIS = 1000;
+    private static final int KEYRINGS = 40;
+    private static final int KEYRING_SIZE = 64 * 1024;
+
+    private FakeDrive mDrive;
+    private String mPoolSizeKey;
+
+    public TransferPoolBenchmark() {
+        super(KeyringProvider.class, KeyringVault.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDrive = new FakeDrive();
+        String folderId = mDrive.addFolder(FakeDrive.ROOT_FOLDER_ID, getContext().getString(R.string.keyring_folder));
+        mDrive.addKeyrings(folderId, KEYRINGS, KEYRING_SIZE, new Random(42));
+        DriveClient.setTransport(mDrive, FakeDrive.TOKEN);
+        mPoolSizeKey = getContext().getString(R.string.prefs_transfer_pool_size);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DriveClient.setTransport(AndroidHttp.newCompatibleTransport(), null);
+        PreferenceManager.getDefaultSharedPreferences(getContext()).edit().remove(mPoolSizeKey).commit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testThroughput() {
+        for (int poolSize : POOL_SIZES) {
+            SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+            editor.putInt(mPoolSizeKey, poolSize);
+            editor.commit();
+
+            Account account = new Account("pool" + SystemClock.elapsedRealtime() + "@example.com", "com.google");
+            ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(KeyringVault.AUTHORITY);
+            try {
+                SyncResult syncResult = new SyncResult();
+                mDrive.setLatency(LATENCY_MILLIS);
+                mDrive.resetCounters();
+                long start = SystemClock.elapsedRealtime();
+                new DriveSyncer(getContext(), provider, account).performSync(syncResult);
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                assertFalse(syncResult.toString(), syncResult.hasError());
+                assertEquals(KEYRINGS * KEYRING_SIZE, mDrive.getBytesDownloaded());
+                Log.i(TAG, "Pool of " + poolSize + ": " + KEYRINGS + " downloads in " + elapsed + "ms, "
+                        + KEYRINGS * 1000L / elapsed + " downloads/s, " + mDrive.getBytesDownloaded() * 1000 / elapsed + " bytes/s, "
+                        + mDrive.getRequestCount() + " requests");
+            } finally {
+                mDrive.setLatency(0);
+                provider.release();
+                deleteRecursively(new java.io.File(getContext().getFilesDir(), account.name));
+            }
+        }
+    }
+
+    private static void deleteRecursively(java.io.File file) {
+        java.io.File[] children = file.listFiles();
+        if (children != null) {
+            for (java.io.File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}